@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/*
+    The memoized date labels have to be the ones Utility used to make every time, and have to
+    be made again when the locale changes.
+ */
+public class TestDayLabelCache extends AndroidTestCase {
+
+    private Locale mLocale;
+    private int mToday;
+    private Time mDayTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocale = Locale.getDefault();
+        mDayTime = new Time();
+        long now = System.currentTimeMillis();
+        mDayTime.set(now);
+        mToday = Time.getJulianDay(now, mDayTime.gmtoff);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Locale.setDefault(mLocale);
+        DayLabelCache.invalidate();
+        super.tearDown();
+    }
+
+    private long day(int fromToday) {
+        return mDayTime.setJulianDay(mToday + fromToday);
+    }
+
+    public void testLabels() {
+        assertEquals(mContext.getString(R.string.today), Utility.getDayName(mContext, day(0)));
+        assertEquals(mContext.getString(R.string.tomorrow), Utility.getDayName(mContext, day(1)));
+        assertEquals(new SimpleDateFormat("EEEE").format(day(3)),
+                Utility.getDayName(mContext, day(3)));
+        assertEquals(new SimpleDateFormat("MMMM dd").format(day(3)),
+                Utility.getFormattedMonthDay(mContext, day(3)));
+
+        assertEquals(mContext.getString(R.string.format_full_friendly_date,
+                        mContext.getString(R.string.today),
+                        new SimpleDateFormat("MMMM dd").format(day(0))),
+                Utility.getFriendlyDayString(mContext, day(0), true));
+        assertEquals(mContext.getString(R.string.today),
+                Utility.getFriendlyDayString(mContext, day(0), false));
+        assertEquals(Utility.getDayName(mContext, day(6)),
+                Utility.getFriendlyDayString(mContext, day(6), true));
+        assertEquals(new SimpleDateFormat("EEE MMM dd").format(day(7)),
+                Utility.getFriendlyDayString(mContext, day(7), false));
+        assertEquals(mContext.getString(R.string.format_full_friendly_date,
+                        new SimpleDateFormat("EEEE").format(day(4)),
+                        new SimpleDateFormat("MMMM dd").format(day(4))),
+                Utility.getFullFriendlyDayString(mContext, day(4)));
+    }
+
+    public void testLabelsAreMemoized() {
+        String dayName = Utility.getDayName(mContext, day(3));
+        assertSame("Error: the same day's label was made twice", dayName,
+                Utility.getDayName(mContext, day(3)));
+        // Any time of the day is the same day
+        assertSame(dayName, Utility.getDayName(mContext, day(3) + 60 * 60 * 1000));
+
+        DayLabelCache.invalidate();
+        String madeAgain = Utility.getDayName(mContext, day(3));
+        assertNotSame("Error: the cache wasn't emptied", dayName, madeAgain);
+        assertEquals(dayName, madeAgain);
+    }
+
+    public void testLocaleChange() {
+        Locale.setDefault(Locale.US);
+        assertEquals(new SimpleDateFormat("EEEE", Locale.US).format(day(3)),
+                Utility.getDayName(mContext, day(3)));
+
+        Locale.setDefault(Locale.GERMANY);
+        assertEquals("Error: a day name was kept from the previous locale",
+                new SimpleDateFormat("EEEE", Locale.GERMANY).format(day(3)),
+                Utility.getDayName(mContext, day(3)));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.MatrixCursor;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+import android.view.View;
+import android.widget.AbsListView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Reloading the forecast list should only bind the rows that were inserted or changed, and
+    a selected row should stay selected when the rows before it come and go.  The binds of each
+    update are counted through a RecyclerView that's laid out by hand.
+ */
+public class TestForecastAdapterUpdates extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastAdapterUpdates.class.getSimpleName();
+
+    private static final int NUM_DAYS = 14;
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+
+    private int mBinds;
+    private ForecastAdapter mAdapter;
+    private RecyclerView mRecyclerView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAdapter = new ForecastAdapter(mContext, new ForecastAdapter.ForecastAdapterOnClickHandler() {
+            @Override
+            public void onClick(Long date, ForecastAdapter.ForecastAdapterViewHolder vh) {
+            }
+        }, new View(mContext), AbsListView.CHOICE_MODE_SINGLE) {
+            @Override
+            public void onBindViewHolder(ForecastAdapterViewHolder holder, int position) {
+                mBinds++;
+                super.onBindViewHolder(holder, position);
+            }
+        };
+        mRecyclerView = new RecyclerView(mContext);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(mContext));
+        // The change animation binds a second holder for a changed row; the binds counted
+        // here are the ones there would be without animations
+        mRecyclerView.setItemAnimator(null);
+        mRecyclerView.setAdapter(mAdapter);
+    }
+
+    // NUM_DAYS days from the given day on, relative to today; maxOffset is added to every high
+    private List<ForecastItem> createItems(int firstDay, double maxOffset) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "date", "short_desc", "max",
+                "min", "location_setting", "weather_id", "coord_lat", "coord_long"});
+        Time dayTime = new Time();
+        long now = System.currentTimeMillis();
+        dayTime.set(now);
+        int today = Time.getJulianDay(now, dayTime.gmtoff);
+        for (int i = 0; i < NUM_DAYS; i++) {
+            int day = firstDay + i;
+            cursor.addRow(new Object[]{i, dayTime.setJulianDay(today + day), "Asteroids",
+                    25.5 + day % 10 + maxOffset, 15.5 - day % 10, "99705", 800 + day % 5,
+                    64.7488, -147.353});
+        }
+        List<ForecastItem> items = ForecastItem.fromCursor(mContext, cursor, true);
+        cursor.close();
+        return items;
+    }
+
+    // Binds the rows the update needs, as the next frame would; returns how many
+    private int layOut() {
+        mBinds = 0;
+        mRecyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        mRecyclerView.layout(0, 0, WIDTH, HEIGHT);
+        return mBinds;
+    }
+
+    private void select(int position) {
+        RecyclerView.ViewHolder vh = mRecyclerView.findViewHolderForAdapterPosition(position);
+        assertNotNull("Error: the row to select isn't shown", vh);
+        mAdapter.selectView(vh);
+        layOut();
+    }
+
+    public void testOnlyChangedRowsAreBound() {
+        mAdapter.swapItems(createItems(0, 0));
+        int visibleRows = layOut();
+        assertTrue("Error: the first load bound no rows", visibleRows > 0);
+
+        mAdapter.swapItems(createItems(0, 0));
+        assertEquals("Error: reloading the same rows bound some of them", 0, layOut());
+
+        List<ForecastItem> changed = new ArrayList<ForecastItem>(createItems(0, 0));
+        changed.set(2, createItems(0, 1).get(2));
+        mAdapter.swapItems(changed);
+        assertEquals("Error: changing one row bound more than that row", 1, layOut());
+
+        mAdapter.notifyDataSetChanged();
+        int fullRebind = layOut();
+        Log.d(LOG_TAG, String.format("first load %d binds, reload of one changed row 1 bind, "
+                + "notifyDataSetChanged %d binds", visibleRows, fullRebind));
+        assertEquals(visibleRows, fullRebind);
+    }
+
+    public void testSelectionFollowsItsRow() {
+        List<ForecastItem> items = createItems(-1, 0);
+        mAdapter.swapItems(items);
+        layOut();
+        select(3);
+        long selectedDate = items.get(3).date;
+        assertEquals(3, mAdapter.getSelectedItemPosition());
+
+        // Midnight: yesterday drops off the top, and a new day comes in at the bottom
+        mAdapter.swapItems(createItems(0, 0));
+        int binds = layOut();
+        Log.d(LOG_TAG, String.format("day rollover %d binds", binds));
+        // The new first row for its today layout, and the row that scrolls into view
+        assertTrue("Error: the rollover bound " + binds + " rows", binds <= 2);
+        assertEquals("Error: the selection didn't follow its row",
+                2, mAdapter.getSelectedItemPosition());
+        assertEquals(selectedDate, mAdapter.getItem(2).date);
+
+        // The selected day itself goes away
+        mAdapter.swapItems(createItems(3, 0));
+        layOut();
+        assertEquals("Error: a removed row stayed selected",
+                RecyclerView.NO_POSITION, mAdapter.getSelectedItemPosition());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.util.List;
+
+/*
+    Checks that the precomputed forecast rows show what binding used to work out, and measures
+    what binding a row costs on the UI thread either way.
+ */
+public class TestForecastItems extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastItems.class.getSimpleName();
+
+    private static final int NUM_DAYS = 60;
+    // One fling binds a screenful of rows a frame, at most
+    private static final int BIND_ROUNDS = 50;
+    private static final double FRAME_MILLIS = 1000.0 / 60;
+
+    // Laid out like ForecastFragment.FORECAST_COLUMNS
+    private MatrixCursor createPage() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "date", "short_desc", "max",
+                "min", "location_setting", "weather_id", "coord_lat", "coord_long"});
+        Time dayTime = new Time();
+        long now = System.currentTimeMillis();
+        dayTime.set(now);
+        int today = Time.getJulianDay(now, dayTime.gmtoff);
+        int[] weatherIds = {200, 301, 501, 600, 741, 800, 801, 803};
+        for (int i = 0; i < NUM_DAYS; i++) {
+            cursor.addRow(new Object[]{i, dayTime.setJulianDay(today + i), "Asteroids",
+                    25.5 + i % 10, 15.5 - i % 10, "99705", weatherIds[i % weatherIds.length],
+                    64.7488, -147.353});
+        }
+        return cursor;
+    }
+
+    public void testItemsMatchUtility() {
+        MatrixCursor cursor = createPage();
+        List<ForecastItem> items = ForecastItem.fromCursor(mContext, cursor, true);
+        assertEquals(NUM_DAYS, items.size());
+
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            ForecastItem item = items.get(i);
+            long date = cursor.getLong(ForecastFragment.COL_WEATHER_DATE);
+            int weatherId = cursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
+            assertEquals(date, item.date);
+            assertEquals(Utility.getFriendlyDayString(mContext, date, false), item.dayString);
+            assertEquals(Utility.getStringForWeatherCondition(mContext, weatherId),
+                    item.description);
+            assertEquals(Utility.formatTemperature(mContext,
+                    cursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP)), item.high);
+            assertEquals(mContext.getString(R.string.a11y_low_temp, item.low), item.lowA11y);
+            assertEquals(Utility.getIconResourceForWeatherCondition(weatherId),
+                    item.iconResourceId);
+            assertEquals(Utility.getArtResourceForWeatherCondition(weatherId),
+                    item.artResourceId);
+        }
+        assertEquals(Utility.getFriendlyDayString(mContext, items.get(0).date, true),
+                items.get(0).longDayString);
+        // Only the first row of the first page can be shown with the today layout
+        assertEquals(items.get(0).dayString,
+                ForecastItem.fromCursor(mContext, cursor, false).get(0).longDayString);
+        cursor.close();
+    }
+
+    public void testItemsAreUnmodifiable() {
+        MatrixCursor cursor = createPage();
+        List<ForecastItem> items = ForecastItem.fromCursor(mContext, cursor, true);
+        cursor.close();
+        try {
+            items.remove(0);
+            fail("Error: the items of a page could be changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /*
+        Not a pass/fail test; logs what binding a row takes on the UI thread when it formats
+        from the cursor, as ForecastAdapter used to, and when it only sets the precomputed
+        strings, next to the budget of one frame.
+     */
+    public void testBindBenchmark() {
+        MatrixCursor cursor = createPage();
+        TextView date = new TextView(mContext);
+        TextView description = new TextView(mContext);
+        TextView high = new TextView(mContext);
+        TextView low = new TextView(mContext);
+
+        long start = System.nanoTime();
+        for (int round = 0; round < BIND_ROUNDS; round++) {
+            for (int i = 0; cursor.moveToPosition(i); i++) {
+                int weatherId = cursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
+                date.setText(Utility.getFriendlyDayString(mContext,
+                        cursor.getLong(ForecastFragment.COL_WEATHER_DATE), false));
+                String desc = Utility.getStringForWeatherCondition(mContext, weatherId);
+                description.setText(desc);
+                description.setContentDescription(mContext.getString(R.string.a11y_forecast, desc));
+                String highString = Utility.formatTemperature(mContext,
+                        cursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP));
+                high.setText(highString);
+                high.setContentDescription(mContext.getString(R.string.a11y_high_temp, highString));
+                String lowString = Utility.formatTemperature(mContext,
+                        cursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP));
+                low.setText(lowString);
+                low.setContentDescription(mContext.getString(R.string.a11y_low_temp, lowString));
+                Utility.usingLocalGraphics(mContext);
+            }
+        }
+        long formattingNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<ForecastItem> items = ForecastItem.fromCursor(mContext, cursor, true);
+        long loadNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < BIND_ROUNDS; round++) {
+            for (ForecastItem item : items) {
+                date.setText(item.dayString);
+                description.setText(item.description);
+                description.setContentDescription(item.descriptionA11y);
+                high.setText(item.high);
+                high.setContentDescription(item.highA11y);
+                low.setText(item.low);
+                low.setContentDescription(item.lowA11y);
+            }
+        }
+        long precomputedNanos = System.nanoTime() - start;
+        cursor.close();
+
+        int binds = BIND_ROUNDS * NUM_DAYS;
+        double formattingMicros = formattingNanos / 1000.0 / binds;
+        double precomputedMicros = precomputedNanos / 1000.0 / binds;
+        Log.d(LOG_TAG, String.format("bind with formatting %.1f us/row (%.0f rows a frame), "
+                        + "bind precomputed %.1f us/row (%.0f rows a frame), "
+                        + "building %d items in the loader %.1f ms",
+                formattingMicros, FRAME_MILLIS * 1000 / Math.max(formattingMicros, 0.001),
+                precomputedMicros, FRAME_MILLIS * 1000 / Math.max(precomputedMicros, 0.001),
+                NUM_DAYS, loadNanos / 1e6));
+    }
+}
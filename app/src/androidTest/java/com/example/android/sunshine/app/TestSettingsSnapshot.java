@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
+import java.util.concurrent.CountDownLatch;
+
+/*
+    The preference snapshot behind the Utility accessors: a change has to show up on the next
+    read, and a read has to be cheaper than going to SharedPreferences.
+ */
+public class TestSettingsSnapshot extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSettingsSnapshot.class.getSimpleName();
+
+    private static final int WARMUP_CALLS = 10000;
+    private static final int MEASURED_CALLS = 100000;
+
+    private String mUnits;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUnits = getPrefs().getString(mContext.getString(R.string.pref_units_key), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        commitOnMainThread(mContext.getString(R.string.pref_units_key), mUnits);
+        super.tearDown();
+    }
+
+    private SharedPreferences getPrefs() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    /*
+        The way the settings screen changes a preference.  Listeners are called on the main
+        thread, and from inside commit() when it's made there.
+     */
+    private void commitOnMainThread(final String key, final String value) throws Exception {
+        final CountDownLatch committed = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences.Editor editor = getPrefs().edit();
+                if (value == null) {
+                    editor.remove(key);
+                } else {
+                    editor.putString(key, value);
+                }
+                editor.commit();
+                committed.countDown();
+            }
+        });
+        committed.await();
+    }
+
+    public void testUnitsChangeIsVisibleOnNextRead() throws Exception {
+        String unitsKey = mContext.getString(R.string.pref_units_key);
+        commitOnMainThread(unitsKey, mContext.getString(R.string.pref_units_metric));
+        assertTrue(Utility.isMetric(mContext));
+
+        commitOnMainThread(unitsKey, mContext.getString(R.string.pref_units_imperial));
+        assertFalse("Error: the units change wasn't seen by the next read",
+                Utility.isMetric(mContext));
+        assertEquals(Utility.formatTemperature(mContext, 10, false),
+                Utility.formatTemperature(mContext, 10));
+
+        commitOnMainThread(unitsKey, mContext.getString(R.string.pref_units_metric));
+        assertTrue("Error: the units change wasn't seen by the next read",
+                Utility.isMetric(mContext));
+    }
+
+    public void testStatusWrittenOffMainThreadIsVisible() {
+        Utility.resetLocationStatus(mContext);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN,
+                Utility.getLocationStatus(mContext));
+    }
+
+    // What Utility.isMetric did before the snapshot
+    private static boolean isMetricFromPreferences(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getString(context.getString(R.string.pref_units_key),
+                context.getString(R.string.pref_units_metric))
+                .equals(context.getString(R.string.pref_units_metric));
+    }
+
+    /*
+        Not a pass/fail test; logs the cost of one call either way, after a warm-up so that
+        the JIT has had its go at both.
+     */
+    public void testAccessorBenchmark() {
+        int metric = 0;
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            metric += isMetricFromPreferences(mContext) ? 1 : 0;
+            metric += Utility.isMetric(mContext) ? 1 : 0;
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_CALLS; i++) {
+            metric += isMetricFromPreferences(mContext) ? 1 : 0;
+        }
+        long preferencesNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_CALLS; i++) {
+            metric += Utility.isMetric(mContext) ? 1 : 0;
+        }
+        long snapshotNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_CALLS; i++) {
+            metric += Utility.getPreferredLocation(mContext).length();
+        }
+        long locationNanos = System.nanoTime() - start;
+
+        Log.d(LOG_TAG, String.format("isMetric from SharedPreferences %.1f ns/call, "
+                        + "isMetric from the snapshot %.1f ns/call, "
+                        + "getPreferredLocation from the snapshot %.1f ns/call (%d)",
+                (double) preferencesNanos / MEASURED_CALLS, (double) snapshotNanos / MEASURED_CALLS,
+                (double) locationNanos / MEASURED_CALLS, metric));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks the compiled-statement bulkInsert path of the provider and measures how many rows a
+    second it takes in, next to one SQLiteDatabase.insert per row in a transaction, which is
+    what bulkInsert used to do.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final int JULIAN_START_DAY = 2457012;  // December 20th, 2014
+    private static final int[] ROW_COUNTS = {14, 1000, 100000};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private long insertNorthPole() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        return ContentUris.parseId(locationUri);
+    }
+
+    /*
+        One row per day, starting from JULIAN_START_DAY, with dates in the middle of the day so
+        that bulkInsert has to normalize every one of them.
+     */
+    static ContentValues[] createWeatherValues(long locationRowId, int numRows) {
+        Time dayTime = new Time();
+        ContentValues[] rows = new ContentValues[numRows];
+        for (int i = 0; i < numRows; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    dayTime.setJulianDay(JULIAN_START_DAY + i) + 12 * 60 * 60 * 1000);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * (i % 100));
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3 + 0.01 * (i % 100));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65 - i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * (i % 10));
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            rows[i] = weatherValues;
+        }
+        return rows;
+    }
+
+    static ContentValues[] createLocationValues(int numRows) {
+        ContentValues[] rows = new ContentValues[numRows];
+        for (int i = 0; i < numRows; i++) {
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(10000 + i));
+            locationValues.put(LocationEntry.COLUMN_CITY_NAME, "City " + i);
+            locationValues.put(LocationEntry.COLUMN_COORD_LAT, 64.7488 + 0.001 * i);
+            locationValues.put(LocationEntry.COLUMN_COORD_LONG, -147.353 + 0.001 * i);
+            rows[i] = locationValues;
+        }
+        return rows;
+    }
+
+    public void testBulkInsertNormalizesDates() {
+        long locationRowId = insertNorthPole();
+        ContentValues[] rows = createWeatherValues(locationRowId, 14);
+        assertEquals(14, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(14, cursor.getCount());
+        Time dayTime = new Time();
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Error: date " + i + " was not normalized",
+                    dayTime.setJulianDay(JULIAN_START_DAY + i), cursor.getLong(0));
+        }
+        cursor.close();
+    }
+
+    public void testBulkInsertLocations() {
+        ContentValues[] rows = createLocationValues(10);
+        assertEquals(10, mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, rows));
+
+        // location_setting is unique, so a second round inserts nothing, but doesn't throw either
+        rows = createLocationValues(10);
+        assertEquals(0, mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, rows));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, LocationEntry.COLUMN_LOCATION_SETTING + " ASC");
+        assertEquals(10, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(rows[i].getAsString(LocationEntry.COLUMN_LOCATION_SETTING),
+                    cursor.getString(cursor.getColumnIndex(LocationEntry.COLUMN_LOCATION_SETTING)));
+            assertEquals(rows[i].getAsString(LocationEntry.COLUMN_CITY_NAME),
+                    cursor.getString(cursor.getColumnIndex(LocationEntry.COLUMN_CITY_NAME)));
+        }
+        cursor.close();
+    }
+
+    public void testBulkInsertMixedColumns() {
+        long locationRowId = insertNorthPole();
+        ContentValues[] rows = createWeatherValues(locationRowId, 5);
+        // a row with different columns gets a statement of its own, and this one violates
+        // NOT NULL, so it fails on its own without taking the rows around it down
+        rows[2].remove(WeatherEntry.COLUMN_SHORT_DESC);
+        assertEquals(4, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows));
+    }
+
+    /*
+        Not a pass/fail test; logs rows per second so regressions show up in the test output.
+     */
+    public void testBulkInsertBenchmark() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        for (int numRows : ROW_COUNTS) {
+            long locationRowId = insertNorthPole();
+
+            // What bulkInsert used to do
+            ContentValues[] rows = createWeatherValues(locationRowId, numRows);
+            long start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (ContentValues row : rows) {
+                    row.put(WeatherEntry.COLUMN_DATE,
+                            WeatherContract.normalizeDate(row.getAsLong(WeatherEntry.COLUMN_DATE)));
+                    db.insert(WeatherEntry.TABLE_NAME, null, row);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long perRowNanos = System.nanoTime() - start;
+            deleteAll();
+
+            locationRowId = insertNorthPole();
+            rows = createWeatherValues(locationRowId, numRows);
+            start = System.nanoTime();
+            int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+            long weatherNanos = System.nanoTime() - start;
+            assertEquals(numRows, inserted);
+            deleteAll();
+
+            rows = createLocationValues(numRows);
+            start = System.nanoTime();
+            inserted = mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, rows);
+            long locationNanos = System.nanoTime() - start;
+            assertEquals(numRows, inserted);
+            deleteAll();
+
+            Log.d(LOG_TAG, String.format("%d rows: weather per-row insert %.0f rows/s, "
+                            + "weather bulkInsert %.0f rows/s, location bulkInsert %.0f rows/s",
+                    numRows, rowsPerSecond(numRows, perRowNanos),
+                    rowsPerSecond(numRows, weatherNanos), rowsPerSecond(numRows, locationNanos)));
+        }
+        dbHelper.close();
+    }
+
+    private static double rowsPerSecond(int numRows, long nanos) {
+        return numRows * 1e9 / Math.max(nanos, 1);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.CurrentSummaryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    The current_summary table has to follow every kind of weather write, and current/[location]
+    has to answer for today even when the stored row is from an earlier day.
+ */
+public class TestCurrentSummary extends AndroidTestCase {
+
+    private static final String LOCATION_SETTING = "99705";
+    private static final int NUM_DAYS = 5;
+
+    private long mLocationId;
+    private Uri mCurrentUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, LOCATION_SETTING);
+        location.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+        mLocationId = ContentUris.parseId(locationUri);
+        mCurrentUri = CurrentSummaryEntry.buildCurrentUri(LOCATION_SETTING);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    // NUM_DAYS days from the given day on, relative to today; day i has weather_id 800 + i
+    private ContentValues[] createForecast(int firstDay) {
+        Time dayTime = new Time();
+        long now = System.currentTimeMillis();
+        dayTime.set(now);
+        int today = Time.getJulianDay(now, dayTime.gmtoff);
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(today + firstDay + i));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 40);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 25.5 + i);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 15.5 - i);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Day " + i);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + i);
+            days[i] = weatherValues;
+        }
+        return days;
+    }
+
+    private void assertCurrent(String error, ContentValues expected) {
+        Cursor cursor = mContext.getContentResolver().query(mCurrentUri, null, null, null, null);
+        assertEquals(error, 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(error, expected.getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                cursor.getLong(cursor.getColumnIndex(CurrentSummaryEntry.COLUMN_DATE)));
+        assertEquals(error, expected.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                cursor.getString(cursor.getColumnIndex(CurrentSummaryEntry.COLUMN_SHORT_DESC)));
+        assertEquals(error, expected.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                cursor.getDouble(cursor.getColumnIndex(CurrentSummaryEntry.COLUMN_MAX_TEMP)), 0);
+        int weatherId = expected.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID);
+        assertEquals(error, weatherId,
+                cursor.getInt(cursor.getColumnIndex(CurrentSummaryEntry.COLUMN_WEATHER_ID)));
+        assertEquals(error, CurrentSummaryEntry.getArtKeyForWeatherCondition(weatherId),
+                cursor.getString(cursor.getColumnIndex(CurrentSummaryEntry.COLUMN_ART_KEY)));
+        cursor.close();
+    }
+
+    private int countSummaryRows() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        Cursor cursor = dbHelper.getReadableDatabase().query(CurrentSummaryEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        dbHelper.close();
+        return count;
+    }
+
+    public void testSummaryFollowsWrites() {
+        // Yesterday on: the summary is of today, not of the first day there is
+        ContentValues[] days = createForecast(-1);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        assertCurrent("Error: bulkInsert didn't summarize today", days[1]);
+
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_SHORT_DESC, "Updated");
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{days[1].getAsString(WeatherEntry.COLUMN_DATE)});
+        days[1].put(WeatherEntry.COLUMN_SHORT_DESC, "Updated");
+        assertCurrent("Error: update didn't reach the summary", days[1]);
+
+        // No forecast for today any more: tomorrow stands in
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{days[1].getAsString(WeatherEntry.COLUMN_DATE)});
+        assertCurrent("Error: delete didn't reach the summary", days[2]);
+
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, days[1]);
+        assertCurrent("Error: insert didn't reach the summary", days[1]);
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        assertEquals(0, countSummaryRows());
+        Cursor cursor = mContext.getContentResolver().query(mCurrentUri, null, null, null, null);
+        assertEquals("Error: a location with no weather has a summary", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testPublishUpdatesSummary() {
+        ContentValues[] days = createForecast(0);
+        Uri stagingUri = WeatherContract.WeatherStagingEntry.buildStagingUri(mLocationId);
+        mContext.getContentResolver().bulkInsert(stagingUri, days);
+        ContentValues publish = new ContentValues();
+        publish.put(WeatherEntry.COLUMN_DATE, days[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        mContext.getContentResolver().update(stagingUri, publish, null, null);
+        assertCurrent("Error: publishing didn't reach the summary", days[0]);
+    }
+
+    public void testStaleSummaryIsWorkedOutAgain() {
+        ContentValues[] days = createForecast(-1);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+
+        // As if the last write had been yesterday
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues yesterday = new ContentValues();
+        yesterday.put(CurrentSummaryEntry.COLUMN_DATE,
+                days[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        yesterday.put(CurrentSummaryEntry.COLUMN_SHORT_DESC,
+                days[0].getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+        assertEquals(1, db.update(CurrentSummaryEntry.TABLE_NAME, yesterday, null, null));
+        dbHelper.close();
+
+        assertCurrent("Error: a summary from yesterday was served as today's", days[1]);
+    }
+
+    public void testUnknownLocation() {
+        Cursor cursor = mContext.getContentResolver().query(
+                CurrentSummaryEntry.buildCurrentUri("nowhere"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testArtKeys() {
+        assertEquals("storm", CurrentSummaryEntry.getArtKeyForWeatherCondition(211));
+        assertEquals("light_rain", CurrentSummaryEntry.getArtKeyForWeatherCondition(301));
+        assertEquals("snow", CurrentSummaryEntry.getArtKeyForWeatherCondition(511));
+        assertEquals("rain", CurrentSummaryEntry.getArtKeyForWeatherCondition(521));
+        assertEquals("fog", CurrentSummaryEntry.getArtKeyForWeatherCondition(761));
+        assertEquals("storm", CurrentSummaryEntry.getArtKeyForWeatherCondition(781));
+        assertEquals("clear", CurrentSummaryEntry.getArtKeyForWeatherCondition(800));
+        assertEquals("clouds", CurrentSummaryEntry.getArtKeyForWeatherCondition(804));
+        assertNull(CurrentSummaryEntry.getArtKeyForWeatherCondition(900));
+    }
+}
@@ -17,8 +17,10 @@ package com.example.android.sunshine.app.data;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 import java.util.HashSet;
 
@@ -55,6 +57,11 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.SyncMetricsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.WeatherStatsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.WeatherChangesEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.WeatherStagingEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.CurrentSummaryEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -91,6 +98,7 @@ public class TestDb extends AndroidTestCase {
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_SAVED);
 
         int columnNameIndex = c.getColumnIndex("name");
         do {
@@ -105,6 +113,14 @@ public class TestDb extends AndroidTestCase {
         db.close();
     }
 
+    // A new database hands freed pages back in steps, so the retention job never needs a VACUUM
+    public void testNewDatabaseUsesIncrementalVacuum() {
+        SQLiteDatabase db = new WeatherDbHelper(this.mContext).getWritableDatabase();
+        assertEquals("Error: the new database was created without incremental vacuum",
+                2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        db.close();
+    }
+
     /*
         Students:  Here is where you will build code to test that we can insert and query the
         location database.  We've done a lot of work for you.  You'll want to look in TestUtilities
@@ -234,4 +250,55 @@ public class TestDb extends AndroidTestCase {
         db.close();
         return locationRowId;
     }
+
+    /*
+        The forecast list query must find its rows through the (location_id, date) index.  A full
+        scan of the weather table gets slower with every day of history, so it must not come back.
+     */
+    @SuppressWarnings("deprecation")
+    public void testForecastQueryPlan() {
+        // ForecastFragment.FORECAST_COLUMNS
+        String[] projection = {
+                WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+                WeatherContract.WeatherEntry.COLUMN_DATE,
+                WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                WeatherContract.LocationEntry.COLUMN_COORD_LONG
+        };
+        String sql = WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                projection,
+                WeatherProvider.sLocationSettingWithStartDateSelection,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                null);
+
+        SQLiteDatabase db = new WeatherDbHelper(this.mContext).getWritableDatabase();
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                new String[]{TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE)});
+        assertTrue("Error: no query plan", plan.moveToFirst());
+
+        int detailIndex = plan.getColumnIndex("detail");
+        boolean usesIndex = false;
+        do {
+            String detail = plan.getString(detailIndex);
+            Log.d(LOG_TAG, "Forecast query plan: " + detail);
+            if (detail.matches("(SCAN|SEARCH)( TABLE)? " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + "\\b.*")) {
+                assertTrue("Error: the forecast query scans the weather table: " + detail,
+                        detail.startsWith("SEARCH"));
+                usesIndex |= detail.contains(WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+            }
+        } while (plan.moveToNext());
+        plan.close();
+        db.close();
+
+        assertTrue("Error: the forecast query doesn't use " + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE,
+                usesIndex);
+    }
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStatsEntry;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+    Builds a database the way every earlier version of the app left it, upgrades it with
+    WeatherDbHelper and checks that the data survived and the schema matches a fresh install.
+
+    When DATABASE_VERSION is bumped, add the schema of the version being replaced to
+    HISTORICAL_SCHEMAS, written out as it was.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbMigrations.class.getSimpleName();
+
+    private static final String UPGRADE_DATABASE_NAME = "weather_upgrade.db";
+    private static final String FRESH_DATABASE_NAME = "weather_fresh.db";
+
+    private static final int JULIAN_START_DAY = 2457012;  // December 20th, 2014
+    private static final int NUM_DAYS = 14;
+
+    private static final String V2_LOCATION_TABLE = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL );";
+    private static final String V3_LOCATION_TABLE = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL, " +
+            "saved INTEGER NOT NULL DEFAULT 0 );";
+    private static final String V2_WEATHER_TABLE = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+    private static final String V4_SYNC_METRICS_TABLE = "CREATE TABLE sync_metrics (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "sync_start INTEGER NOT NULL, " +
+            "location_setting TEXT, " +
+            "phase TEXT NOT NULL, " +
+            "duration INTEGER NOT NULL, " +
+            "bytes INTEGER NOT NULL DEFAULT 0, " +
+            "rows INTEGER NOT NULL DEFAULT 0 );";
+    private static final String V5_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS weather_location_date ON weather " +
+            "(location_id, date, short_desc, max, min, weather_id);";
+    private static final String V6_WEATHER_STATS_TABLE = "CREATE TABLE weather_stats (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_id INTEGER NOT NULL, " +
+            "period TEXT NOT NULL, " +
+            "period_start INTEGER NOT NULL, " +
+            "days INTEGER NOT NULL, " +
+            "min_temp REAL NOT NULL, " +
+            "max_temp REAL NOT NULL, " +
+            "sum_temp REAL NOT NULL, " +
+            "min_humidity REAL NOT NULL, " +
+            "max_humidity REAL NOT NULL, " +
+            "sum_humidity REAL NOT NULL, " +
+            "min_wind REAL NOT NULL, " +
+            "max_wind REAL NOT NULL, " +
+            "sum_wind REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (location_id, period, period_start) ON CONFLICT REPLACE);";
+    private static final String V7_WEATHER_CHANGES_TABLE = "CREATE TABLE weather_changes (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "operation TEXT NOT NULL );";
+    private static final String V8_WEATHER_STAGING_TABLE = "CREATE TABLE weather_staging (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " UNIQUE (location_id, date) ON CONFLICT REPLACE);";
+
+    // Indexed by database version
+    private static final String[][] HISTORICAL_SCHEMAS = {
+            null,
+            null,
+            {V2_LOCATION_TABLE, V2_WEATHER_TABLE},
+            {V3_LOCATION_TABLE, V2_WEATHER_TABLE},
+            {V3_LOCATION_TABLE, V2_WEATHER_TABLE, V4_SYNC_METRICS_TABLE},
+            {V3_LOCATION_TABLE, V2_WEATHER_TABLE, V4_SYNC_METRICS_TABLE,
+                    V5_WEATHER_LOCATION_DATE_INDEX},
+            {V3_LOCATION_TABLE, V2_WEATHER_TABLE, V4_SYNC_METRICS_TABLE,
+                    V5_WEATHER_LOCATION_DATE_INDEX, V6_WEATHER_STATS_TABLE},
+            {V3_LOCATION_TABLE, V2_WEATHER_TABLE, V4_SYNC_METRICS_TABLE,
+                    V5_WEATHER_LOCATION_DATE_INDEX, V6_WEATHER_STATS_TABLE,
+                    V7_WEATHER_CHANGES_TABLE},
+            {V3_LOCATION_TABLE, V2_WEATHER_TABLE, V4_SYNC_METRICS_TABLE,
+                    V5_WEATHER_LOCATION_DATE_INDEX, V6_WEATHER_STATS_TABLE,
+                    V7_WEATHER_CHANGES_TABLE, V8_WEATHER_STAGING_TABLE},
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteDatabases();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDatabases();
+        super.tearDown();
+    }
+
+    private void deleteDatabases() {
+        mContext.deleteDatabase(UPGRADE_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    public void testEveryVersionHasAMigration() {
+        assertEquals("Error: HISTORICAL_SCHEMAS is missing a version",
+                WeatherDbHelper.DATABASE_VERSION, HISTORICAL_SCHEMAS.length);
+        for (int version = WeatherDbHelper.OLDEST_MIGRATABLE_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            assertEquals(version, WeatherDbHelper.getMigration(version).fromVersion);
+        }
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        Set<String> freshSchema = describeSchema(FRESH_DATABASE_NAME);
+
+        for (int version = WeatherDbHelper.OLDEST_MIGRATABLE_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            mContext.deleteDatabase(UPGRADE_DATABASE_NAME);
+            createHistoricalDatabase(version);
+
+            // Time from opening the old database to having a forecast to show
+            long start = System.nanoTime();
+            WeatherDbHelper dbHelper =
+                    new WeatherDbHelper(mContext, UPGRADE_DATABASE_NAME, false);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            Cursor cursor = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            int forecastDays = cursor.getCount();
+            cursor.close();
+            long elapsed = System.nanoTime() - start;
+            Log.d(LOG_TAG, String.format("Upgrade from version %d: %d forecast days available "
+                            + "after %.2f ms (dropping the tables left 0 until the next sync)",
+                    version, forecastDays, elapsed / 1e6));
+
+            assertEquals("Error: upgrading from version " + version + " lost the forecast",
+                    NUM_DAYS, forecastDays);
+            assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+
+            cursor = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null, null);
+            assertTrue("Error: upgrading from version " + version + " lost the location",
+                    cursor.moveToFirst());
+            assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(
+                    cursor.getColumnIndex(LocationEntry.COLUMN_LOCATION_SETTING)));
+            assertEquals(0, cursor.getInt(cursor.getColumnIndex(LocationEntry.COLUMN_SAVED)));
+            cursor.close();
+
+            // The rollup is filled from the weather that was already there
+            cursor = db.query(WeatherStatsEntry.TABLE_NAME,
+                    new String[]{"SUM(" + WeatherStatsEntry.COLUMN_DAYS + ")"},
+                    WeatherStatsEntry.COLUMN_PERIOD + " = ?",
+                    new String[]{WeatherStatsEntry.PERIOD_WEEK}, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Error: upgrading from version " + version + " left the stats empty",
+                    NUM_DAYS, cursor.getInt(0));
+            cursor.close();
+            dbHelper.close();
+
+            assertEquals("Error: upgrading from version " + version
+                            + " doesn't give the same schema as a fresh install",
+                    freshSchema, describeSchema(UPGRADE_DATABASE_NAME));
+        }
+    }
+
+    public void testTooOldIsRecreated() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(UPGRADE_DATABASE_NAME, 0, null);
+        db.execSQL("CREATE TABLE weather (date TEXT, description TEXT);");
+        db.setVersion(WeatherDbHelper.OLDEST_MIGRATABLE_VERSION - 1);
+        db.close();
+
+        Set<String> freshSchema = describeSchema(FRESH_DATABASE_NAME);
+        assertEquals(freshSchema, describeSchema(UPGRADE_DATABASE_NAME));
+    }
+
+    private void createHistoricalDatabase(int version) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(UPGRADE_DATABASE_NAME, 0, null);
+        for (String sql : HISTORICAL_SCHEMAS[version]) {
+            db.execSQL(sql);
+        }
+
+        ContentValues location = new ContentValues();
+        location.put("location_setting", TestUtilities.TEST_LOCATION);
+        location.put("city_name", "North Pole");
+        location.put("coord_lat", 64.7488);
+        location.put("coord_long", -147.353);
+        long locationId = db.insert("location", null, location);
+        assertTrue(locationId != -1);
+
+        Time dayTime = new Time();
+        for (int i = 0; i < NUM_DAYS; i++) {
+            ContentValues weather = new ContentValues();
+            weather.put("location_id", locationId);
+            weather.put("date", dayTime.setJulianDay(JULIAN_START_DAY + i));
+            weather.put("short_desc", "Asteroids");
+            weather.put("weather_id", 321);
+            weather.put("min", 65);
+            weather.put("max", 75);
+            weather.put("humidity", 1.2);
+            weather.put("pressure", 1.3);
+            weather.put("wind", 5.5);
+            weather.put("degrees", 1.1);
+            assertTrue(db.insert("weather", null, weather) != -1);
+        }
+        if (version >= 6) {
+            // From version 6 on the provider keeps weather_stats in step with the weather
+            WeatherStatsRollup.rebuild(db);
+        }
+        db.setVersion(version);
+        db.close();
+    }
+
+    /*
+        Opens the database through WeatherDbHelper and describes every table's columns and
+        every index, in a form that can be compared between databases.
+     */
+    private Set<String> describeSchema(String name) {
+        Set<String> schema = new HashSet<String>();
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, name, false);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor master = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master " +
+                "WHERE name NOT IN ('android_metadata', 'sqlite_sequence')", null);
+        while (master.moveToNext()) {
+            String type = master.getString(0);
+            String tableName = master.getString(2);
+            schema.add(type + " " + master.getString(1) + " on " + tableName);
+            if ("table".equals(type)) {
+                Cursor columns = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+                while (columns.moveToNext()) {
+                    schema.add("column " + tableName + "." +
+                            columns.getString(columns.getColumnIndex("name")) + " " +
+                            columns.getString(columns.getColumnIndex("type")) +
+                            " notnull=" + columns.getInt(columns.getColumnIndex("notnull")) +
+                            " default=" + columns.getString(columns.getColumnIndex("dflt_value")) +
+                            " pk=" + columns.getInt(columns.getColumnIndex("pk")));
+                }
+                columns.close();
+            } else if ("index".equals(type)) {
+                Cursor columns = db.rawQuery("PRAGMA index_info(" + master.getString(1) + ")", null);
+                while (columns.moveToNext()) {
+                    schema.add("index column " + master.getString(1) + "." +
+                            columns.getInt(columns.getColumnIndex("seqno")) + " " +
+                            columns.getString(columns.getColumnIndex("name")));
+                }
+                columns.close();
+            }
+        }
+        master.close();
+        dbHelper.close();
+        return schema;
+    }
+}
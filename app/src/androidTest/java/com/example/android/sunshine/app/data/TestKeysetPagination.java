@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Walks a long history of one location a page at a time, forwards with "after" and backwards
+    with "before", and checks every day comes back exactly once.  Logs how long the first and
+    the last page take, which should be about the same.
+ */
+public class TestKeysetPagination extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestKeysetPagination.class.getSimpleName();
+
+    private static final int NUM_DAYS = 10000;
+    private static final int PAGE_SIZE = 60;
+
+    private static final String[] PAGE_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_MAX_TEMP
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestBulkInsertBenchmark.createWeatherValues(locationRowId, NUM_DAYS)));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testPageForwards() {
+        long afterDate = Long.MIN_VALUE;
+        int days = 0;
+        int pages = 0;
+        long firstPageNanos = 0;
+        long lastPageNanos = 0;
+        while (true) {
+            Uri uri = days == 0
+                    ? WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION).buildUpon()
+                            .appendQueryParameter(WeatherEntry.QUERY_PARAM_LIMIT,
+                                    Integer.toString(PAGE_SIZE)).build()
+                    : WeatherEntry.buildWeatherLocationAfter(TestUtilities.TEST_LOCATION,
+                            afterDate, PAGE_SIZE);
+            long start = System.nanoTime();
+            Cursor page = mContext.getContentResolver().query(uri, PAGE_COLUMNS, null, null, null);
+            int count = page.getCount();
+            long nanos = System.nanoTime() - start;
+            if (pages == 0) {
+                firstPageNanos = nanos;
+            }
+            lastPageNanos = nanos;
+            pages++;
+
+            assertTrue("Error: a page came back longer than its limit", count <= PAGE_SIZE);
+            while (page.moveToNext()) {
+                long date = page.getLong(0);
+                assertTrue("Error: days out of order or repeated at " + date, date > afterDate);
+                afterDate = date;
+                days++;
+            }
+            page.close();
+            if (count < PAGE_SIZE) {
+                break;
+            }
+        }
+        assertEquals("Error: paging forwards didn't return every day once", NUM_DAYS, days);
+
+        Log.d(LOG_TAG, String.format("%d days in %d pages: first page %.2f ms, last page %.2f ms",
+                NUM_DAYS, pages, firstPageNanos / 1e6, lastPageNanos / 1e6));
+    }
+
+    public void testPageBackwards() {
+        long beforeDate = Long.MAX_VALUE;
+        int days = 0;
+        while (true) {
+            Cursor page = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocationBefore(TestUtilities.TEST_LOCATION,
+                            beforeDate, PAGE_SIZE),
+                    PAGE_COLUMNS, null, null, null);
+            int count = page.getCount();
+            while (page.moveToNext()) {
+                long date = page.getLong(0);
+                assertTrue("Error: history out of order or repeated at " + date,
+                        date < beforeDate);
+                beforeDate = date;
+                days++;
+            }
+            page.close();
+            if (count < PAGE_SIZE) {
+                break;
+            }
+        }
+        assertEquals("Error: paging backwards didn't return every day once", NUM_DAYS, days);
+    }
+
+    public void testPageOfForecastFromStartDate() {
+        Cursor all = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                PAGE_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(all.moveToPosition(100));
+        long startDate = all.getLong(0);
+        all.close();
+
+        Cursor page = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationPage(TestUtilities.TEST_LOCATION, startDate,
+                        PAGE_SIZE),
+                PAGE_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(PAGE_SIZE, page.getCount());
+        assertTrue(page.moveToFirst());
+        assertEquals(startDate, page.getLong(0));
+        page.close();
+    }
+}
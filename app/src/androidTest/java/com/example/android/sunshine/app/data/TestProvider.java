@@ -16,8 +16,11 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
@@ -28,8 +31,12 @@ import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherChangesEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -160,6 +167,20 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/changes?since=0
+        type = mContext.getContentResolver().getType(WeatherChangesEntry.buildChangesSinceUri(0));
+        assertEquals(WeatherChangesEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/staging/7
+        type = mContext.getContentResolver().getType(
+                WeatherContract.WeatherStagingEntry.buildStagingUri(7));
+        assertEquals(WeatherContract.WeatherStagingEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/current/94074
+        type = mContext.getContentResolver().getType(
+                WeatherContract.CurrentSummaryEntry.buildCurrentUri(testLocation));
+        assertEquals(WeatherContract.CurrentSummaryEntry.CONTENT_ITEM_TYPE, type);
     }
 
 
@@ -183,6 +204,7 @@ public class TestProvider extends AndroidTestCase {
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
 
         db.close();
+        TestUtilities.clearProviderQueryCache(mContext);
 
         // Test the basic content provider query
         Cursor weatherCursor = mContext.getContentResolver().query(
@@ -286,6 +308,56 @@ public class TestProvider extends AndroidTestCase {
         cursor.close();
     }
 
+    /*
+        The sync adapter's location write: one insert on the upsert URI, whether or not the
+        location is there already.
+     */
+    public void testUpsertLocation() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        Uri upsertUri = LocationEntry.buildLocationUpsertUri();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(upsertUri, values));
+        assertTrue(locationRowId != -1);
+
+        TestUtilities.CountingContentObserver locationObserver =
+                TestUtilities.CountingContentObserver.getCountingContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                LocationEntry.CONTENT_URI, true, locationObserver);
+
+        // The same location again: same row, nothing written
+        assertEquals(locationRowId, ContentUris.parseId(
+                mContext.getContentResolver().insert(upsertUri, values)));
+        assertEquals("Error: upserting an unchanged location notified its observers",
+                0, locationObserver.getSettledChangeCount());
+
+        // New details: same row, updated
+        ContentValues updatedValues = new ContentValues(values);
+        updatedValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        assertEquals(locationRowId, ContentUris.parseId(
+                mContext.getContentResolver().insert(upsertUri, updatedValues)));
+        assertEquals(1, locationObserver.getSettledChangeCount());
+
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        locationObserver.quit();
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: upserting added a second row", 1, cursor.getCount());
+        TestUtilities.validateCursor("testUpsertLocation.  Error validating location entry upsert.",
+                cursor, updatedValues);
+        cursor.close();
+
+        // Deleting the location drops its cached _id, so it comes back as a new row
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        long reinsertedRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(upsertUri, values));
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertTrue("Error: upserting a deleted location didn't insert it", cursor.moveToFirst());
+        assertEquals(reinsertedRowId, cursor.getLong(0));
+        cursor.close();
+    }
+
 
     // Make sure we can still delete after adding/updating stuff
     //
@@ -512,4 +584,264 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        The sync_metrics table is bounded: once more than SYNC_METRICS_MAX_ROWS records have been
+        written only the most recent ones are kept.
+     */
+    public void testSyncMetricsRetention() {
+        mContext.getContentResolver().delete(SyncMetricsEntry.CONTENT_URI, null, null);
+
+        int numRecords = WeatherProvider.SYNC_METRICS_MAX_ROWS + 10;
+        ContentValues[] records = new ContentValues[numRecords];
+        for (int i = 0; i < numRecords; i++) {
+            ContentValues values = new ContentValues();
+            values.put(SyncMetricsEntry.COLUMN_SYNC_START, 1419033600000L);
+            values.put(SyncMetricsEntry.COLUMN_PHASE, SyncMetricsEntry.PHASE_PARSE);
+            values.put(SyncMetricsEntry.COLUMN_DURATION, i);
+            values.put(SyncMetricsEntry.COLUMN_BYTES, 0);
+            values.put(SyncMetricsEntry.COLUMN_ROWS, 14);
+            records[i] = values;
+        }
+        assertEquals(numRecords,
+                mContext.getContentResolver().bulkInsert(SyncMetricsEntry.CONTENT_URI, records));
+
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                new String[]{SyncMetricsEntry.COLUMN_DURATION}, null, null,
+                SyncMetricsEntry._ID + " ASC");
+        assertEquals("Error: sync_metrics was not trimmed",
+                WeatherProvider.SYNC_METRICS_MAX_ROWS, cursor.getCount());
+        // the oldest records are the ones that went
+        assertTrue(cursor.moveToFirst());
+        assertEquals(10, cursor.getLong(0));
+        cursor.close();
+
+        mContext.getContentResolver().delete(SyncMetricsEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        A batch runs in one transaction and tells each observer once, when it commits, however
+        many rows it touched.  This is how the sync adapter stores a forecast.
+     */
+    public void testApplyBatch() throws Exception {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // yesterday's forecast, to be purged
+        ContentValues oldWeather = TestUtilities.createWeatherValues(locationRowId);
+        oldWeather.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE - 1000 * 60 * 60 * 24);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, oldWeather);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(locationRowId)) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(WeatherContract.normalizeDate(TestUtilities.TEST_DATE))})
+                .build());
+
+        TestUtilities.CountingContentObserver weatherObserver =
+                TestUtilities.CountingContentObserver.getCountingContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        ContentProviderResult[] results =
+                mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT + 1, results.length);
+        assertEquals(1, results[BULK_INSERT_RECORDS_TO_INSERT].count.intValue());
+
+        assertEquals("Error: the batch should notify once, not once per operation",
+                1, weatherObserver.getSettledChangeCount());
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        weatherObserver.quit();
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        If any operation fails, none of the batch is applied and nobody is told about it.
+     */
+    public void testApplyBatchRollsBack() throws Exception {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(locationRowId)) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .build());
+        }
+        // fails: there are only BULK_INSERT_RECORDS_TO_INSERT rows
+        operations.add(ContentProviderOperation.newAssertQuery(WeatherEntry.CONTENT_URI)
+                .withExpectedCount(BULK_INSERT_RECORDS_TO_INSERT + 1)
+                .build());
+
+        TestUtilities.CountingContentObserver weatherObserver =
+                TestUtilities.CountingContentObserver.getCountingContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the batch should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        assertEquals(0, weatherObserver.getSettledChangeCount());
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        weatherObserver.quit();
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: a failed batch left rows behind", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Weather changes are notified on the location (and day) that was written, so an observer
+        of one location isn't woken up by a sync of another.
+     */
+    public void testLocationScopedNotifications() throws Exception {
+        ContentValues northPole = TestUtilities.createNorthPoleLocationValues();
+        long northPoleId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, northPole));
+        ContentValues elsewhere = TestUtilities.createNorthPoleLocationValues();
+        elsewhere.put(LocationEntry.COLUMN_LOCATION_SETTING, "94043");
+        long elsewhereId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, elsewhere));
+
+        TestUtilities.CountingContentObserver northPoleObserver =
+                TestUtilities.CountingContentObserver.getCountingContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                northPoleObserver);
+        TestUtilities.CountingContentObserver elsewhereObserver =
+                TestUtilities.CountingContentObserver.getCountingContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("94043"), true, elsewhereObserver);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(northPoleId));
+        assertEquals(1, northPoleObserver.getSettledChangeCount());
+        assertEquals("Error: a bulkInsert for one location notified another",
+                0, elsewhereObserver.getSettledChangeCount());
+
+        // a batch over both locations tells each of them once
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(elsewhereId)) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                                WeatherEntry.COLUMN_DATE + " > ?",
+                        new String[]{Long.toString(northPoleId),
+                                Long.toString(WeatherContract.normalizeDate(TestUtilities.TEST_DATE))})
+                .build());
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertEquals(2, northPoleObserver.getSettledChangeCount());
+        assertEquals(1, elsewhereObserver.getSettledChangeCount());
+
+        // a single day is notified on that day, which the observer of another day doesn't hear
+        TestUtilities.CountingContentObserver otherDayObserver =
+                TestUtilities.CountingContentObserver.getCountingContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate("94043",
+                        TestUtilities.TEST_DATE + 1000 * 60 * 60 * 24), true, otherDayObserver);
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(elsewhereId),
+                        Long.toString(WeatherContract.normalizeDate(TestUtilities.TEST_DATE))});
+        assertEquals(2, elsewhereObserver.getSettledChangeCount());
+        assertEquals(0, otherDayObserver.getSettledChangeCount());
+        assertEquals(2, northPoleObserver.getSettledChangeCount());
+
+        for (TestUtilities.CountingContentObserver observer : new TestUtilities.CountingContentObserver[]{
+                northPoleObserver, elsewhereObserver, otherDayObserver}) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.quit();
+        }
+    }
+
+    /*
+        Every weather write is logged, in order, and a reader only gets what came after the last
+        sequence number it saw.
+     */
+    public void testChangeLog() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues));
+        long checkpoint = getLatestChange();
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        TestUtilities.CountingContentObserver changesObserver =
+                TestUtilities.CountingContentObserver.getCountingContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherChangesEntry.CONTENT_URI, true, changesObserver);
+
+        long day = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(day)});
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " > ?", new String[]{Long.toString(day)});
+
+        assertEquals(2, changesObserver.getSettledChangeCount());
+        mContext.getContentResolver().unregisterContentObserver(changesObserver);
+        changesObserver.quit();
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherChangesEntry.buildChangesSinceUri(checkpoint), null, null, null, null);
+        int expectedChanges = BULK_INSERT_RECORDS_TO_INSERT + 1 + BULK_INSERT_RECORDS_TO_INSERT - 1;
+        assertEquals(expectedChanges, cursor.getCount());
+        int idColumn = cursor.getColumnIndex(WeatherChangesEntry._ID);
+        int operationColumn = cursor.getColumnIndex(WeatherChangesEntry.COLUMN_OPERATION);
+        int dateColumn = cursor.getColumnIndex(WeatherChangesEntry.COLUMN_DATE);
+        int settingColumn = cursor.getColumnIndex(WeatherChangesEntry.COLUMN_LOCATION_SETTING);
+        long sequence = checkpoint;
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Error: the change log skipped a sequence number",
+                    sequence + 1, cursor.getLong(idColumn));
+            sequence = cursor.getLong(idColumn);
+            assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(settingColumn));
+            String expectedOperation = i < BULK_INSERT_RECORDS_TO_INSERT
+                    ? WeatherChangesEntry.OPERATION_INSERT
+                    : i == BULK_INSERT_RECORDS_TO_INSERT
+                    ? WeatherChangesEntry.OPERATION_UPDATE
+                    : WeatherChangesEntry.OPERATION_DELETE;
+            assertEquals(expectedOperation, cursor.getString(operationColumn));
+            if (i == BULK_INSERT_RECORDS_TO_INSERT) {
+                assertEquals(day, cursor.getLong(dateColumn));
+            }
+        }
+        cursor.close();
+
+        // Nothing new since the last one
+        cursor = mContext.getContentResolver().query(
+                WeatherChangesEntry.buildChangesSinceUri(sequence), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    private long getLatestChange() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherChangesEntry.CONTENT_URI,
+                new String[]{"MAX(" + WeatherChangesEntry.TABLE_NAME + "." +
+                        WeatherChangesEntry._ID + ") AS latest"}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long latest = cursor.getLong(0);
+        cursor.close();
+        return latest;
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that WeatherProvider serves repeated queries from its cache and drops them on the
+    next write, and logs how long a cache hit takes next to the same query on SQLite.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestQueryCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryCache.class.getSimpleName();
+
+    private static final int NUM_QUERIES = 500;
+
+    // The forecast list's columns
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    private Uri mForecastUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestBulkInsertBenchmark.createWeatherValues(locationRowId, 14));
+        mForecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private Cursor queryForecast() {
+        return mContext.getContentResolver().query(mForecastUri, FORECAST_COLUMNS, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    // The query cache's counters, read the way the rest of the app would
+    private Bundle getStats() {
+        Bundle stats = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_QUERY_CACHE_STATS, null, null);
+        assertNotNull(stats);
+        return stats;
+    }
+
+    private long getHitCount() {
+        return getStats().getLong(WeatherContract.EXTRA_CACHE_HITS);
+    }
+
+    private long getMissCount() {
+        return getStats().getLong(WeatherContract.EXTRA_CACHE_MISSES);
+    }
+
+    public void testRepeatedQueryIsAHit() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The provider doesn't cache anything
+            return;
+        }
+        long hits = getHitCount();
+        long misses = getMissCount();
+
+        Cursor first = queryForecast();
+        assertEquals(misses + 1, getMissCount());
+        Cursor second = queryForecast();
+        assertEquals(hits + 1, getHitCount());
+        assertTrue(second instanceof MatrixCursor);
+
+        // Same rows, and each caller has a cursor of its own
+        assertEquals(14, first.getCount());
+        assertEquals(first.getCount(), second.getCount());
+        assertTrue(first.moveToFirst());
+        assertTrue(second.moveToFirst());
+        do {
+            for (int i = 0; i < FORECAST_COLUMNS.length; i++) {
+                assertEquals(first.getString(i), second.getString(i));
+            }
+            assertEquals(first.getLong(1), second.getLong(1));
+            assertEquals(first.getDouble(3), second.getDouble(3));
+        } while (first.moveToNext() && second.moveToNext());
+        first.close();
+        second.close();
+    }
+
+    public void testWriteInvalidates() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The provider doesn't cache anything
+            return;
+        }
+        queryForecast().close();
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        assertEquals(14, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                null, null));
+
+        long misses = getMissCount();
+        Cursor cursor = queryForecast();
+        assertEquals("Error: the cache wasn't invalidated by the update",
+                misses + 1, getMissCount());
+        while (cursor.moveToNext()) {
+            assertEquals("Meteors", cursor.getString(2));
+        }
+        cursor.close();
+    }
+
+    public void testSizeBudget() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The provider doesn't cache anything
+            return;
+        }
+        // Different sort orders are different entries
+        for (int i = 0; i < 1000; i++) {
+            mContext.getContentResolver().query(mForecastUri, FORECAST_COLUMNS, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC, '" + i + "'").close();
+        }
+        assertTrue("Error: the cache went over its budget",
+                getStats().getLong(WeatherContract.EXTRA_CACHE_SIZE_BYTES)
+                        <= WeatherProvider.QUERY_CACHE_MAX_BYTES);
+    }
+
+    /*
+        Not a pass/fail test; logs the latencies so regressions show up in the test output.
+     */
+    public void testQueryCacheBenchmark() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The provider doesn't cache anything
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        String[] selectionArgs = {TestUtilities.TEST_LOCATION, "0"};
+
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            Cursor cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(db,
+                    FORECAST_COLUMNS, WeatherProvider.sLocationSettingWithStartDateSelection,
+                    selectionArgs, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            // the query only runs once the cursor is filled
+            cursor.getCount();
+            cursor.close();
+        }
+        long sqliteNanos = System.nanoTime() - start;
+        dbHelper.close();
+
+        queryForecast().close();
+        long hits = getHitCount();
+        start = System.nanoTime();
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            Cursor cursor = queryForecast();
+            cursor.getCount();
+            cursor.close();
+        }
+        long cachedNanos = System.nanoTime() - start;
+        assertEquals(hits + NUM_QUERIES, getHitCount());
+
+        Log.d(LOG_TAG, String.format("forecast query: SQLite %.1f us, provider cache hit %.1f us "
+                        + "(%d hits, %d misses so far)",
+                sqliteNanos / 1e3 / NUM_QUERIES, cachedNanos / 1e3 / NUM_QUERIES,
+                getHitCount(), getMissCount()));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that weather/[location] queries which only need weather columns are answered by the
+    weather table alone, with the same results as the join, and logs how long both take as the
+    table grows.
+ */
+public class TestQueryRouting extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryRouting.class.getSimpleName();
+
+    private static final String ROUTING_DATABASE_NAME = "weather_routing.db";
+    private static final int DAYS_PER_LOCATION = 14;
+    private static final int[] ROW_COUNTS = {14, 1400, 14000, 140000};
+    private static final int NUM_QUERIES = 200;
+
+    // The Today widget's columns
+    private static final String[] WEATHER_ONLY_COLUMNS = {
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    // DetailFragment's columns
+    private static final String[] DETAIL_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mContext.deleteDatabase(ROUTING_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mContext.deleteDatabase(ROUTING_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testCanSkipLocationJoin() {
+        assertTrue(WeatherProvider.canSkipLocationJoin(WEATHER_ONLY_COLUMNS, null));
+        assertTrue(WeatherProvider.canSkipLocationJoin(DETAIL_COLUMNS,
+                WeatherEntry.COLUMN_DATE + " ASC"));
+
+        assertFalse("Error: a null projection asks for the location columns too",
+                WeatherProvider.canSkipLocationJoin(null, null));
+        assertFalse(WeatherProvider.canSkipLocationJoin(new String[]{
+                WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_COORD_LAT}, null));
+        assertFalse(WeatherProvider.canSkipLocationJoin(WEATHER_ONLY_COLUMNS,
+                LocationEntry.COLUMN_CITY_NAME + " ASC"));
+    }
+
+    public void testWeatherOnlyMatchesJoin() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] rows =
+                TestBulkInsertBenchmark.createWeatherValues(locationRowId, DAYS_PER_LOCATION);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+
+        Uri[] uris = {
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        rows[3].getAsLong(WeatherEntry.COLUMN_DATE)),
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        rows[5].getAsLong(WeatherEntry.COLUMN_DATE))
+        };
+        int[] expectedCounts = {DAYS_PER_LOCATION, DAYS_PER_LOCATION - 3, 1};
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        for (int u = 0; u < uris.length; u++) {
+            Cursor routed = mContext.getContentResolver().query(uris[u], DETAIL_COLUMNS,
+                    null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            Cursor joined = queryJoin(db, uris[u], DETAIL_COLUMNS);
+            assertEquals(expectedCounts[u], routed.getCount());
+            assertEquals(joined.getCount(), routed.getCount());
+            assertTrue(routed.getColumnIndex(LocationEntry.COLUMN_LOCATION_SETTING) != -1);
+            while (routed.moveToNext() && joined.moveToNext()) {
+                for (int i = 0; i < DETAIL_COLUMNS.length; i++) {
+                    assertEquals("Error: " + uris[u] + " differs from the join in column " + i,
+                            joined.getString(i), routed.getString(i));
+                }
+            }
+            routed.close();
+            joined.close();
+        }
+        dbHelper.close();
+
+        // An unknown location comes back empty either way
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("00000"), WEATHER_ONLY_COLUMNS,
+                null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    private static Cursor queryJoin(SQLiteDatabase db, Uri uri, String[] projection) {
+        String locationSetting = WeatherEntry.getLocationSettingFromUri(uri);
+        String selection = LocationEntry.TABLE_NAME + "." +
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+        String[] selectionArgs = {locationSetting};
+        if (uri.getPathSegments().size() > 2) {
+            selection += " AND " + WeatherEntry.COLUMN_DATE + " = ?";
+            selectionArgs = new String[]{locationSetting,
+                    Long.toString(WeatherEntry.getDateFromUri(uri))};
+        } else if (WeatherEntry.getStartDateFromUri(uri) != 0) {
+            selection += " AND " + WeatherEntry.COLUMN_DATE + " >= ?";
+            selectionArgs = new String[]{locationSetting,
+                    Long.toString(WeatherEntry.getStartDateFromUri(uri))};
+        }
+        return WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(db, projection,
+                selection, selectionArgs, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    /*
+        Not a pass/fail test; logs per-query latency with and without the join so regressions
+        show up in the test output.
+     */
+    public void testJoinBenchmark() {
+        for (int numRows : ROW_COUNTS) {
+            mContext.deleteDatabase(ROUTING_DATABASE_NAME);
+            WeatherDbHelper dbHelper =
+                    new WeatherDbHelper(mContext, ROUTING_DATABASE_NAME, true);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+            // The location asked for is the last of many, each with a fortnight of forecasts
+            int numLocations = numRows / DAYS_PER_LOCATION;
+            ContentValues[] locations = TestBulkInsertBenchmark.createLocationValues(numLocations);
+            long locationRowId = -1;
+            db.beginTransaction();
+            try {
+                for (ContentValues location : locations) {
+                    locationRowId = db.insert(LocationEntry.TABLE_NAME, null, location);
+                    for (ContentValues weather : TestBulkInsertBenchmark.createWeatherValues(
+                            locationRowId, DAYS_PER_LOCATION)) {
+                        db.insert(WeatherEntry.TABLE_NAME, null, weather);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            String locationSetting = locations[numLocations - 1]
+                    .getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+
+            String[] joinArgs = {locationSetting, "0"};
+            long start = System.nanoTime();
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                Cursor cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(db,
+                        WEATHER_ONLY_COLUMNS, WeatherProvider.sLocationSettingWithStartDateSelection,
+                        joinArgs, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                assertEquals(DAYS_PER_LOCATION, cursor.getCount());
+                cursor.close();
+            }
+            long joinNanos = System.nanoTime() - start;
+
+            String[] weatherArgs = {Long.toString(locationRowId), "0"};
+            start = System.nanoTime();
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                Cursor cursor = db.query(WeatherEntry.TABLE_NAME, WEATHER_ONLY_COLUMNS,
+                        WeatherProvider.sLocationIdWithStartDateSelection, weatherArgs,
+                        null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                assertEquals(DAYS_PER_LOCATION, cursor.getCount());
+                cursor.close();
+            }
+            long weatherOnlyNanos = System.nanoTime() - start;
+            dbHelper.close();
+
+            Log.d(LOG_TAG, String.format("%d weather rows: join %.1f us, weather only %.1f us",
+                    numRows, joinNanos / 1e3 / NUM_QUERIES, weatherOnlyNanos / 1e3 / NUM_QUERIES));
+        }
+    }
+}
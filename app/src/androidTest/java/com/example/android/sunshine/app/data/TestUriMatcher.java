@@ -34,8 +34,15 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    private static final Uri TEST_WEATHER_STATS_DIR = WeatherContract.WeatherStatsEntry.buildWeatherStatsUri(LOCATION_QUERY, WeatherContract.WeatherStatsEntry.PERIOD_MONTH);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_METRICS_DIR = WeatherContract.SyncMetricsEntry.CONTENT_URI;
+    private static final Uri TEST_WEATHER_CHANGES_DIR = WeatherContract.WeatherChangesEntry.buildChangesSinceUri(42);
+    private static final Uri TEST_WEATHER_STAGING_DIR = WeatherContract.WeatherStagingEntry.buildStagingUri(7);
+    private static final Uri TEST_WEATHER_STAGING_PUBLISH = WeatherContract.WeatherStagingEntry.buildPublishUri(7,
+            WeatherContract.WeatherStagingEntry.PUBLISH_INSERTED);
+    private static final Uri TEST_CURRENT_SUMMARY_ITEM = WeatherContract.CurrentSummaryEntry.buildCurrentUri(LOCATION_QUERY);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -51,7 +58,19 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER STATS URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_STATS_DIR), WeatherProvider.WEATHER_STATS);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The SYNC METRICS URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_METRICS_DIR), WeatherProvider.SYNC_METRICS);
+        assertEquals("Error: The WEATHER CHANGES URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_CHANGES_DIR), WeatherProvider.WEATHER_CHANGES);
+        assertEquals("Error: The WEATHER STAGING URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_STAGING_DIR), WeatherProvider.WEATHER_STAGING);
+        assertEquals("Error: The WEATHER STAGING PUBLISH URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_STAGING_PUBLISH), WeatherProvider.WEATHER_STAGING_PUBLISH);
+        assertEquals("Error: The CURRENT SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_CURRENT_SUMMARY_ITEM), WeatherProvider.CURRENT_SUMMARY);
     }
 }
@@ -15,12 +15,15 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.test.AndroidTestCase;
@@ -29,6 +32,7 @@ import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -107,10 +111,28 @@ public class TestUtilities extends AndroidTestCase {
 
         // Verify we got a row back.
         assertTrue("Error: Failure to insert North Pole Location Values", locationRowId != -1);
+        clearProviderQueryCache(context);
 
         return locationRowId;
     }
 
+    /*
+        WeatherProvider keeps query results until its next write, and location ids until the
+        next location update or delete, so a test that writes to the database behind its back
+        has to drop them before going through it again.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void clearProviderQueryCache(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // getLocalContentProvider() isn't there
+            return;
+        }
+        ContentProviderClient client = context.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        ((WeatherProvider) client.getLocalContentProvider()).clearCaches();
+        client.release();
+    }
+
     /*
         Students: The functions we provide inside of TestProvider use this utility class to test
         the ContentObserver callbacks using the PollingCheck class that we grabbed from the Android
@@ -163,4 +185,53 @@ public class TestUtilities extends AndroidTestCase {
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
+
+    /*
+        Counts onChange callbacks, for tests that care about how many notifications a write
+        produces rather than whether there was one.
+     */
+    static class CountingContentObserver extends ContentObserver {
+        // How long to wait for notifications that might still be on their way
+        private static final long SETTLE_MILLIS = 1000;
+
+        final HandlerThread mHT;
+        final AtomicInteger mChangeCount = new AtomicInteger();
+
+        static CountingContentObserver getCountingContentObserver() {
+            HandlerThread ht = new HandlerThread("CountingContentObserverThread");
+            ht.start();
+            return new CountingContentObserver(ht);
+        }
+
+        private CountingContentObserver(HandlerThread ht) {
+            super(new Handler(ht.getLooper()));
+            mHT = ht;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mChangeCount.incrementAndGet();
+        }
+
+        /*
+            Waits for the notifications to arrive, then returns how many there were.
+         */
+        public int getSettledChangeCount() {
+            try {
+                Thread.sleep(SETTLE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mChangeCount.get();
+        }
+
+        public void quit() {
+            mHT.quit();
+        }
+    }
 }
@@ -42,4 +42,28 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    public void testBuildWeatherLocationPages() {
+        Uri after = WeatherContract.WeatherEntry.buildWeatherLocationAfter(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, 20);
+        assertEquals(TEST_WEATHER_LOCATION,
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(after));
+        assertEquals(TEST_WEATHER_DATE, WeatherContract.WeatherEntry.getAfterDateFromUri(after));
+        assertEquals(0, WeatherContract.WeatherEntry.getBeforeDateFromUri(after));
+        assertEquals(20, WeatherContract.WeatherEntry.getLimitFromUri(after));
+
+        Uri before = WeatherContract.WeatherEntry.buildWeatherLocationBefore(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, 20);
+        assertEquals(TEST_WEATHER_DATE, WeatherContract.WeatherEntry.getBeforeDateFromUri(before));
+        assertEquals(0, WeatherContract.WeatherEntry.getAfterDateFromUri(before));
+
+        Uri page = WeatherContract.WeatherEntry.buildWeatherLocationPage(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, 20);
+        assertEquals(WeatherContract.normalizeDate(TEST_WEATHER_DATE),
+                WeatherContract.WeatherEntry.getStartDateFromUri(page));
+        assertEquals(20, WeatherContract.WeatherEntry.getLimitFromUri(page));
+
+        assertEquals(0, WeatherContract.WeatherEntry.getLimitFromUri(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_WEATHER_LOCATION)));
+    }
 }
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherChangesEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStagingEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Staging a forecast and publishing it, the way the sync adapter stores what it downloaded.
+ */
+public class TestWeatherStaging extends AndroidTestCase {
+
+    private static final String LOCATION_SETTING = "99705";
+    private static final int NUM_DAYS = 14;
+    private static final int JULIAN_START_DAY = 2457012;  // December 20th, 2014
+    private static final int NUM_READERS = 3;
+    private static final long RUN_MILLIS = 3000;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, LOCATION_SETTING);
+        location.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+        mLocationId = ContentUris.parseId(locationUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    // weather_id is the same for every day, so that a forecast can be told from the next one
+    private ContentValues[] createForecast(int firstDay, int numDays, int weatherId) {
+        Time dayTime = new Time();
+        ContentValues[] days = new ContentValues[numDays];
+        for (int i = 0; i < numDays; i++) {
+            int day = firstDay + i;
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(JULIAN_START_DAY + day));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 40 + day);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1013.25 - 0.01 * day);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 25.5 + day);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 15.5 - day);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * day);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+            days[i] = weatherValues;
+        }
+        return days;
+    }
+
+    // Stages the days and publishes them, returning the rows written
+    private int stageAndPublish(ContentValues[] days) {
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri stagingUri = WeatherStagingEntry.buildStagingUri(mLocationId);
+        assertEquals(days.length, resolver.bulkInsert(stagingUri, days));
+        ContentValues publish = new ContentValues();
+        publish.put(WeatherEntry.COLUMN_DATE, days[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        return resolver.update(stagingUri, publish, null, null);
+    }
+
+    private long getLatestChange() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherChangesEntry.CONTENT_URI,
+                new String[]{"MAX(" + WeatherChangesEntry.TABLE_NAME + "." +
+                        WeatherChangesEntry._ID + ") AS latest"}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long latest = cursor.getLong(0);
+        cursor.close();
+        return latest;
+    }
+
+    // The number of each operation logged since the given change, insert, update and delete
+    private int[] countChangesSince(long since) {
+        int[] counts = new int[3];
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherChangesEntry.buildChangesSinceUri(since),
+                new String[]{WeatherChangesEntry.COLUMN_OPERATION}, null, null, null);
+        while (cursor.moveToNext()) {
+            String operation = cursor.getString(0);
+            if (WeatherChangesEntry.OPERATION_INSERT.equals(operation)) {
+                counts[0]++;
+            } else if (WeatherChangesEntry.OPERATION_UPDATE.equals(operation)) {
+                counts[1]++;
+            } else {
+                counts[2]++;
+            }
+        }
+        cursor.close();
+        return counts;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private int countStagedRows() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        Cursor cursor = dbHelper.getReadableDatabase().query(WeatherStagingEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        dbHelper.close();
+        return count;
+    }
+
+    public void testPublishWritesOnlyWhatChanged() {
+        // Empty database: everything is an insert
+        long since = getLatestChange();
+        assertEquals(NUM_DAYS, stageAndPublish(createForecast(0, NUM_DAYS, 321)));
+        int[] changes = countChangesSince(since);
+        assertEquals(NUM_DAYS, changes[0]);
+        assertEquals(0, changes[1]);
+        assertEquals(0, changes[2]);
+        assertEquals(NUM_DAYS, countWeatherRows());
+        assertEquals("Error: publishing left rows in the staging table", 0, countStagedRows());
+
+        // Same forecast again: nothing to write
+        since = getLatestChange();
+        assertEquals("Error: an unchanged forecast produced writes",
+                0, stageAndPublish(createForecast(0, NUM_DAYS, 321)));
+        assertEquals(since, getLatestChange());
+
+        // One day changed
+        ContentValues[] days = createForecast(0, NUM_DAYS, 321);
+        days[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        since = getLatestChange();
+        assertEquals(1, stageAndPublish(days));
+        changes = countChangesSince(since);
+        assertEquals(0, changes[0]);
+        assertEquals(1, changes[1]);
+        assertEquals(0, changes[2]);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(LOCATION_SETTING,
+                        days[3].getAsLong(WeatherEntry.COLUMN_DATE)),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(99.5, cursor.getDouble(0), 0);
+        cursor.close();
+
+        // The window moved on by a day and the last day is no longer forecast
+        days = createForecast(1, NUM_DAYS - 2, 321);
+        days[2].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        since = getLatestChange();
+        assertEquals(1, stageAndPublish(days));
+        changes = countChangesSince(since);
+        assertEquals(0, changes[0]);
+        assertEquals(0, changes[1]);
+        assertEquals(1, changes[2]);
+        // the day before the window is left for the retention job
+        assertEquals(NUM_DAYS - 1, countWeatherRows());
+    }
+
+    // Stages the days and publishes them in parts, as the sync adapter does; returns the rows
+    // deleted, updated and inserted
+    private int[] stageAndPublishInParts(ContentValues[] days) throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        assertEquals(days.length,
+                resolver.bulkInsert(WeatherStagingEntry.buildStagingUri(mLocationId), days));
+        String[] parts = {WeatherStagingEntry.PUBLISH_DELETED, WeatherStagingEntry.PUBLISH_UPDATED,
+                WeatherStagingEntry.PUBLISH_INSERTED};
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (String part : parts) {
+            operations.add(ContentProviderOperation.newUpdate(
+                    WeatherStagingEntry.buildPublishUri(mLocationId, part))
+                    .withValue(WeatherEntry.COLUMN_DATE, days[0].getAsLong(WeatherEntry.COLUMN_DATE))
+                    .build());
+        }
+        ContentProviderResult[] results =
+                resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertEquals(parts.length, results.length);
+        return new int[]{results[0].count, results[1].count, results[2].count};
+    }
+
+    public void testPublishInPartsCountsEachPart() throws Exception {
+        int[] counts = stageAndPublishInParts(createForecast(0, NUM_DAYS, 321));
+        assertEquals(0, counts[0]);
+        assertEquals(0, counts[1]);
+        assertEquals(NUM_DAYS, counts[2]);
+        assertEquals("Error: publishing left rows in the staging table", 0, countStagedRows());
+
+        // The window moves on by a day, the last day is dropped, and one day changes
+        ContentValues[] days = createForecast(1, NUM_DAYS - 2, 321);
+        days[2].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        counts = stageAndPublishInParts(days);
+        assertEquals("Error: wrong number of deletes", 1, counts[0]);
+        assertEquals("Error: wrong number of updates", 1, counts[1]);
+        assertEquals("Error: wrong number of inserts", 0, counts[2]);
+
+        // A day comes back at the end
+        counts = stageAndPublishInParts(createForecast(1, NUM_DAYS - 1, 321));
+        assertEquals(0, counts[0]);
+        assertEquals("Error: the changed day wasn't changed back", 1, counts[1]);
+        assertEquals(1, counts[2]);
+        assertEquals(NUM_DAYS, countWeatherRows());
+        assertEquals(0, countStagedRows());
+    }
+
+    public void testDiscardStaged() {
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri stagingUri = WeatherStagingEntry.buildStagingUri(mLocationId);
+        resolver.bulkInsert(stagingUri, createForecast(0, NUM_DAYS, 321));
+        assertEquals(NUM_DAYS, resolver.delete(stagingUri, null, null));
+        assertEquals(0, countStagedRows());
+        assertEquals("Error: staged rows were visible before being published",
+                0, countWeatherRows());
+    }
+
+    /*
+        A writer keeps publishing forecasts that are alternately NUM_DAYS and NUM_DAYS - 1
+        days long, so that every swap updates every day and inserts or deletes the last one,
+        while readers query the forecast the way the loader does.  Every read has to be one
+        whole forecast: all of its days, and all from the same publish.
+     */
+    public void testReadersNeverSeeTornForecast() throws Throwable {
+        stageAndPublish(createForecast(0, NUM_DAYS, 0));
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch finished = new CountDownLatch(NUM_READERS + 1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final int[] publishes = new int[1];
+        final int[] reads = new int[NUM_READERS];
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int generation = 1;
+                    while (!done.get()) {
+                        stageAndPublish(
+                                createForecast(0, NUM_DAYS - generation % 2, generation));
+                        generation++;
+                    }
+                    publishes[0] = generation - 1;
+                } catch (Throwable t) {
+                    errors.add(t);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+        for (int r = 0; r < NUM_READERS; r++) {
+            final int reader = r;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Uri forecastUri = WeatherEntry.buildWeatherLocation(LOCATION_SETTING);
+                        String[] projection = {WeatherEntry.COLUMN_DATE,
+                                WeatherEntry.COLUMN_WEATHER_ID};
+                        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+                        while (!done.get()) {
+                            Cursor cursor = mContext.getContentResolver().query(forecastUri,
+                                    projection, null, null, sortOrder);
+                            try {
+                                assertTrue(cursor.moveToFirst());
+                                int generation = cursor.getInt(1);
+                                assertEquals("Error: read a forecast with days missing or extra",
+                                        NUM_DAYS - generation % 2, cursor.getCount());
+                                while (cursor.moveToNext()) {
+                                    assertEquals("Error: read days from two forecasts at once",
+                                            generation, cursor.getInt(1));
+                                }
+                            } finally {
+                                cursor.close();
+                            }
+                            reads[reader]++;
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        done.set(true);
+        finished.await();
+
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        assertTrue("Error: no forecasts were published", publishes[0] > 0);
+        for (int read : reads) {
+            assertTrue("Error: a reader never got to read", read > 0);
+        }
+    }
+}
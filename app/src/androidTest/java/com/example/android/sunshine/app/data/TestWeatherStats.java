@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStatsEntry;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Checks that the weather_stats rollup agrees with the weather table after inserts, updates
+    and deletes, and logs how long a stats query takes next to aggregating the weather table
+    as it grows.
+ */
+public class TestWeatherStats extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherStats.class.getSimpleName();
+
+    private static final String STATS_DATABASE_NAME = "weather_stats.db";
+    private static final int NUM_DAYS = 90;
+    private static final int[] DAY_COUNTS = {90, 365, 3650, 36500};
+    private static final int NUM_QUERIES = 100;
+
+    private static final String[] STATS_COLUMNS = {
+            WeatherStatsEntry.COLUMN_PERIOD_START,
+            WeatherStatsEntry.COLUMN_DAYS,
+            WeatherStatsEntry.COLUMN_MIN_TEMP,
+            WeatherStatsEntry.COLUMN_MAX_TEMP,
+            WeatherStatsEntry.COLUMN_AVG_TEMP,
+            WeatherStatsEntry.COLUMN_MIN_HUMIDITY,
+            WeatherStatsEntry.COLUMN_MAX_HUMIDITY,
+            WeatherStatsEntry.COLUMN_AVG_HUMIDITY,
+            WeatherStatsEntry.COLUMN_MIN_WIND_SPEED,
+            WeatherStatsEntry.COLUMN_MAX_WIND_SPEED,
+            WeatherStatsEntry.COLUMN_AVG_WIND_SPEED
+    };
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mContext.deleteDatabase(STATS_DATABASE_NAME);
+        mLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mContext.deleteDatabase(STATS_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testStatsFollowWrites() {
+        ContentValues[] rows = TestBulkInsertBenchmark.createWeatherValues(mLocationRowId, NUM_DAYS);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+        assertStatsMatchWeather();
+
+        // A hotter day, then one moved into another week
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 120);
+        String daySelection = WeatherEntry.COLUMN_DATE + " = ?";
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                daySelection, new String[]{Long.toString(
+                        WeatherContract.normalizeDate(rows[10].getAsLong(WeatherEntry.COLUMN_DATE)))}));
+        assertStatsMatchWeather();
+
+        values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, rows[NUM_DAYS - 1].getAsLong(WeatherEntry.COLUMN_DATE)
+                + 30L * 24 * 60 * 60 * 1000);
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                daySelection, new String[]{Long.toString(
+                        WeatherContract.normalizeDate(rows[20].getAsLong(WeatherEntry.COLUMN_DATE)))}));
+        assertStatsMatchWeather();
+
+        // Deleting the first forty days leaves no stats for the weeks and months they filled
+        long monthEnd = WeatherContract.normalizeDate(rows[40].getAsLong(WeatherEntry.COLUMN_DATE));
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " < ?", new String[]{Long.toString(monthEnd)});
+        assertStatsMatchWeather();
+
+        // And a single insert
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, rows[0]);
+        assertStatsMatchWeather();
+    }
+
+    private void assertStatsMatchWeather() {
+        assertPeriodMatches(WeatherStatsEntry.PERIOD_WEEK);
+        assertPeriodMatches(WeatherStatsEntry.PERIOD_MONTH);
+    }
+
+    /*
+        Works the period out here, from every weather row, and compares it with the provider's.
+     */
+    private void assertPeriodMatches(String period) {
+        Map<Long, double[]> expected = new TreeMap<Long, double[]>();
+        Time time = new Time();
+        Cursor weather = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_HUMIDITY,
+                        WeatherEntry.COLUMN_WIND_SPEED},
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(mLocationRowId)}, null);
+        while (weather.moveToNext()) {
+            long date = weather.getLong(0);
+            time.set(date);
+            int julianDay = Time.getJulianDay(date, time.gmtoff);
+            int startDay = WeatherStatsEntry.PERIOD_WEEK.equals(period)
+                    ? julianDay - julianDay % 7 : julianDay - (time.monthDay - 1);
+            long start = time.setJulianDay(startDay);
+
+            double[] minMaxSums = expected.get(start);
+            if (minMaxSums == null) {
+                minMaxSums = new double[]{0,
+                        Double.MAX_VALUE, -Double.MAX_VALUE, 0,
+                        Double.MAX_VALUE, -Double.MAX_VALUE, 0,
+                        Double.MAX_VALUE, -Double.MAX_VALUE, 0};
+                expected.put(start, minMaxSums);
+            }
+            double[] values = {(weather.getDouble(1) + weather.getDouble(2)) / 2,
+                    weather.getDouble(3), weather.getDouble(4)};
+            minMaxSums[0]++;
+            minMaxSums[1] = Math.min(minMaxSums[1], weather.getDouble(1));
+            minMaxSums[2] = Math.max(minMaxSums[2], weather.getDouble(2));
+            minMaxSums[3] += values[0];
+            for (int i = 1; i < values.length; i++) {
+                minMaxSums[3 * i + 1] = Math.min(minMaxSums[3 * i + 1], values[i]);
+                minMaxSums[3 * i + 2] = Math.max(minMaxSums[3 * i + 2], values[i]);
+                minMaxSums[3 * i + 3] += values[i];
+            }
+        }
+        weather.close();
+
+        Cursor stats = mContext.getContentResolver().query(
+                WeatherStatsEntry.buildWeatherStatsUri(TestUtilities.TEST_LOCATION, period),
+                STATS_COLUMNS, null, null, null);
+        assertEquals("Error: wrong number of " + period + "s", expected.size(), stats.getCount());
+        for (Map.Entry<Long, double[]> entry : expected.entrySet()) {
+            assertTrue(stats.moveToNext());
+            double[] minMaxSums = entry.getValue();
+            int days = (int) minMaxSums[0];
+            assertEquals((long) entry.getKey(), stats.getLong(0));
+            assertEquals(days, stats.getInt(1));
+            for (int i = 0; i < 3; i++) {
+                String message = "Error: " + period + " starting " + entry.getKey() +
+                        " is off in column " + STATS_COLUMNS[3 * i + 2];
+                assertEquals(message, minMaxSums[3 * i + 1], stats.getDouble(3 * i + 2), 1e-6);
+                assertEquals(message, minMaxSums[3 * i + 2], stats.getDouble(3 * i + 3), 1e-6);
+                assertEquals(message, minMaxSums[3 * i + 3] / days, stats.getDouble(3 * i + 4), 1e-6);
+            }
+        }
+        stats.close();
+    }
+
+    public void testStartDate() {
+        ContentValues[] rows = TestBulkInsertBenchmark.createWeatherValues(mLocationRowId, NUM_DAYS);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+
+        long startDate = WeatherContract.normalizeDate(
+                rows[NUM_DAYS / 2].getAsLong(WeatherEntry.COLUMN_DATE));
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherStatsEntry.buildWeatherStatsUri(TestUtilities.TEST_LOCATION,
+                        WeatherStatsEntry.PERIOD_WEEK).buildUpon()
+                        .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                                Long.toString(startDate)).build(),
+                STATS_COLUMNS, null, null, null);
+        assertTrue(cursor.getCount() > 0);
+        while (cursor.moveToNext()) {
+            assertTrue(cursor.getLong(0) >= startDate);
+        }
+        cursor.close();
+
+        // An unknown location has no stats
+        cursor = mContext.getContentResolver().query(
+                WeatherStatsEntry.buildWeatherStatsUri("00000", WeatherStatsEntry.PERIOD_WEEK),
+                STATS_COLUMNS, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Not a pass/fail test; logs a monthly stats read from the rollup next to the same
+        aggregation over the weather table, as the history grows.
+     */
+    public void testStatsBenchmark() {
+        for (int numDays : DAY_COUNTS) {
+            mContext.deleteDatabase(STATS_DATABASE_NAME);
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, STATS_DATABASE_NAME, true);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            long locationRowId = db.insert(LocationEntry.TABLE_NAME, null,
+                    TestUtilities.createNorthPoleLocationValues());
+            WeatherStatsRollup rollup = new WeatherStatsRollup();
+            db.beginTransaction();
+            try {
+                for (ContentValues weather : TestBulkInsertBenchmark.createWeatherValues(
+                        locationRowId, numDays)) {
+                    long date = WeatherContract.normalizeDate(
+                            weather.getAsLong(WeatherEntry.COLUMN_DATE));
+                    weather.put(WeatherEntry.COLUMN_DATE, date);
+                    db.insert(WeatherEntry.TABLE_NAME, null, weather);
+                    rollup.addDay(locationRowId, date);
+                }
+                rollup.apply(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            String[] args = {Long.toString(locationRowId), WeatherStatsEntry.PERIOD_MONTH};
+            long start = System.nanoTime();
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                Cursor cursor = db.query(WeatherStatsEntry.TABLE_NAME, null,
+                        WeatherStatsEntry.COLUMN_LOC_KEY + " = ? AND " +
+                                WeatherStatsEntry.COLUMN_PERIOD + " = ?",
+                        args, null, null, WeatherStatsEntry.COLUMN_PERIOD_START + " ASC");
+                cursor.getCount();
+                cursor.close();
+            }
+            long rollupNanos = System.nanoTime() - start;
+
+            // strftime does the month bucketing, so this is the cheapest the aggregate gets
+            String month = "strftime('%Y-%m', " + WeatherEntry.COLUMN_DATE +
+                    " / 1000, 'unixepoch', 'localtime')";
+            String[] weatherArgs = {Long.toString(locationRowId)};
+            start = System.nanoTime();
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                Cursor cursor = db.query(WeatherEntry.TABLE_NAME, new String[]{month,
+                                "COUNT(*)", "MIN(min)", "MAX(max)", "AVG((min + max) / 2)",
+                                "MIN(humidity)", "MAX(humidity)", "AVG(humidity)",
+                                "MIN(wind)", "MAX(wind)", "AVG(wind)"},
+                        WeatherEntry.COLUMN_LOC_KEY + " = ?", weatherArgs, month, null, month);
+                cursor.getCount();
+                cursor.close();
+            }
+            long aggregateNanos = System.nanoTime() - start;
+            dbHelper.close();
+
+            Log.d(LOG_TAG, String.format("%d days: monthly stats from the rollup %.1f us, "
+                            + "aggregated from weather %.1f us",
+                    numDays, rollupNanos / 1e3 / NUM_QUERIES, aggregateNanos / 1e3 / NUM_QUERIES));
+        }
+    }
+}
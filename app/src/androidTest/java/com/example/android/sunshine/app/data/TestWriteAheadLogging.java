@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    One thread keeps bulk inserting forecasts, the way the sync adapter does, while several
+    others run the forecast list query, the way the widgets, Muzei and the loader do.  Logs the
+    readers' latency percentiles with and without write-ahead logging.
+
+    Runs against a scratch database so that the journal mode can be chosen per run.
+ */
+public class TestWriteAheadLogging extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWriteAheadLogging.class.getSimpleName();
+
+    private static final String STRESS_DATABASE_NAME = "weather_stress.db";
+    private static final int NUM_READERS = 4;
+    private static final int NUM_LOCATIONS = 20;
+    private static final long RUN_MILLIS = 3000;
+
+    // The provider's location + start date query
+    private static final String FORECAST_QUERY = "SELECT " +
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID + ", " +
+            WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " + WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            LocationEntry.COLUMN_LOCATION_SETTING + ", " + WeatherEntry.COLUMN_WEATHER_ID +
+            " FROM " + WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME +
+            " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID +
+            " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(STRESS_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(STRESS_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void testWriteAheadLoggingEnabled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // isWriteAheadLoggingEnabled() doesn't exist yet
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        assertTrue("Error: weather.db is not in WAL mode",
+                dbHelper.getWritableDatabase().isWriteAheadLoggingEnabled());
+        dbHelper.close();
+    }
+
+    public void testReaderLatencyUnderWrites() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // No write-ahead logging to compare against
+            return;
+        }
+        long[] withoutWal = runStress(false);
+        mContext.deleteDatabase(STRESS_DATABASE_NAME);
+        long[] withWal = runStress(true);
+
+        Log.d(LOG_TAG, String.format("reader latency without WAL: %d reads, p50 %.2f ms, "
+                        + "p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                withoutWal.length, percentile(withoutWal, 50), percentile(withoutWal, 90),
+                percentile(withoutWal, 99), percentile(withoutWal, 100)));
+        Log.d(LOG_TAG, String.format("reader latency with WAL: %d reads, p50 %.2f ms, "
+                        + "p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                withWal.length, percentile(withWal, 50), percentile(withWal, 90),
+                percentile(withWal, 99), percentile(withWal, 100)));
+    }
+
+    /*
+        @return every read's latency in nanoseconds, sorted
+     */
+    private long[] runStress(boolean writeAheadLogging) throws Throwable {
+        final WeatherDbHelper dbHelper =
+                new WeatherDbHelper(mContext, STRESS_DATABASE_NAME, writeAheadLogging);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final long[] locationIds = new long[NUM_LOCATIONS];
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(i));
+            locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch finished = new CountDownLatch(NUM_READERS + 1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int round = 0;
+                    while (!done.get()) {
+                        // Same as WeatherProvider.bulkInsert, one location at a time
+                        ContentValues[] rows = TestBulkInsertBenchmark.createWeatherValues(
+                                locationIds[round % NUM_LOCATIONS], 14);
+                        BulkInsertStatement statement = new BulkInsertStatement(db,
+                                WeatherEntry.TABLE_NAME, WeatherEntry.COLUMN_DATE);
+                        db.beginTransaction();
+                        try {
+                            for (ContentValues row : rows) {
+                                statement.insert(row);
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            statement.close();
+                            db.endTransaction();
+                        }
+                        round++;
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        };
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(writer);
+        for (int r = 0; r < NUM_READERS; r++) {
+            final int reader = r;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        SQLiteDatabase readableDb = dbHelper.getReadableDatabase();
+                        int round = reader;
+                        while (!done.get()) {
+                            String[] args = {Integer.toString(round % NUM_LOCATIONS), "0"};
+                            long start = System.nanoTime();
+                            Cursor cursor = readableDb.rawQuery(FORECAST_QUERY, args);
+                            // the query only runs once the cursor is filled
+                            cursor.getCount();
+                            cursor.close();
+                            latencies.add(System.nanoTime() - start);
+                            round++;
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        done.set(true);
+        finished.await();
+        dbHelper.close();
+
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        assertTrue("Error: no reads completed", sorted.length > 0);
+        return sorted;
+    }
+
+    // in milliseconds
+    private static double percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
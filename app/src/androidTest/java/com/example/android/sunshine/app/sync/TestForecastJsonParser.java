@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks that the streaming forecast parser produces exactly what the JSONObject parser did,
+    and compares how much each of them allocates and how long each takes.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int JULIAN_START_DAY = 2457012;  // December 20th, 2014
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    static class CollectingCallback implements ForecastJsonParser.Callback {
+        String cityName;
+        double lat;
+        double lon;
+        final List<ContentValues> days = new ArrayList<ContentValues>();
+
+        @Override
+        public void onLocation(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(ContentValues weatherValues) {
+            days.add(weatherValues);
+        }
+    }
+
+    /*
+        Builds a response shaped like the OWM forecast/daily endpoint, with the given number of
+        days.  "city" is deliberately placed after "list" in every other payload so the streaming
+        parser can't rely on field order.
+     */
+    static String createForecastJson(int numDays) {
+        StringBuilder list = new StringBuilder("\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) list.append(',');
+            list.append("{\"dt\":").append(1419073200L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(20.5 + i % 7)
+                    .append(",\"min\":").append(10.25 + i % 5)
+                    .append(",\"max\":").append(25.75 + i % 3)
+                    .append(",\"night\":12.1,\"eve\":18.4,\"morn\":11.9}")
+                    .append(",\"pressure\":").append(1012.5 + i % 11)
+                    .append(",\"humidity\":").append(40 + i % 50)
+                    .append(",\"weather\":[{\"id\":").append(500 + i % 4)
+                    .append(",\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}]")
+                    .append(",\"speed\":").append(3.5 + i % 9)
+                    .append(",\"deg\":").append((i * 37) % 360)
+                    .append(",\"clouds\":").append(i % 100)
+                    .append(",\"rain\":0.5}");
+        }
+        list.append(']');
+
+        String city = "\"city\":{\"id\":5375480,\"name\":\"Mountain View\","
+                + "\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},"
+                + "\"country\":\"US\",\"population\":0}";
+        String header = "\"cod\":\"200\",\"message\":0.0123,\"cnt\":" + numDays;
+
+        if (numDays % 2 == 0) {
+            return "{" + city + "," + header + "," + list + "}";
+        } else {
+            return "{" + header + "," + list + "," + city + "}";
+        }
+    }
+
+    private static InputStream toStream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    /*
+        The pre-Honeycomb path: read everything into a String, then build the JSONObject tree.
+     */
+    private static int parseAsTree(InputStream in, CollectingCallback callback)
+            throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        return ForecastJsonParser.parse(buffer.toString(), JULIAN_START_DAY, callback);
+    }
+
+    public void testStreamingMatchesTree() throws Throwable {
+        for (int numDays : new int[]{14, 15}) {
+            String json = createForecastJson(numDays);
+
+            CollectingCallback tree = new CollectingCallback();
+            assertEquals(HttpURLConnection.HTTP_OK, parseAsTree(toStream(json), tree));
+
+            CollectingCallback stream = new CollectingCallback();
+            assertEquals(HttpURLConnection.HTTP_OK,
+                    ForecastJsonParser.parse(toStream(json), JULIAN_START_DAY, stream));
+
+            assertEquals(tree.cityName, stream.cityName);
+            assertEquals(tree.lat, stream.lat);
+            assertEquals(tree.lon, stream.lon);
+            assertEquals(numDays, stream.days.size());
+            assertEquals(tree.days, stream.days);
+        }
+    }
+
+    public void testErrorCode() throws Throwable {
+        String json = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+        CollectingCallback tree = new CollectingCallback();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, parseAsTree(toStream(json), tree));
+
+        CollectingCallback stream = new CollectingCallback();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                ForecastJsonParser.parse(toStream(json), JULIAN_START_DAY, stream));
+        assertTrue(stream.days.isEmpty());
+    }
+
+    public void testMalformedResponse() throws Throwable {
+        String[] malformed = {
+                "{\"cod\":\"200\",\"list\":[{\"pressure\":",
+                "{\"cod\":\"200\",\"list\":[]}",
+                "{\"cod\":\"200\",\"city\":{\"name\":\"x\"},\"list\":[]}",
+                "{\"cod\":\"200\",\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1,\"lon\":2}},"
+                        + "\"list\":[{\"pressure\":\"high\"}]}",
+                "[]"
+        };
+        for (String json : malformed) {
+            try {
+                ForecastJsonParser.parse(toStream(json), JULIAN_START_DAY, new CollectingCallback());
+                fail("Error: malformed forecast was accepted: " + json);
+            } catch (JSONException e) {
+                // expected, reported as LOCATION_STATUS_SERVER_INVALID by the sync adapter
+            }
+        }
+    }
+
+    /*
+        A 200 response cut off part way through has to be rejected the same way by both paths,
+        as malformed rather than as a failed read, or the sync adapter would blame the network.
+     */
+    public void testTruncatedResponse() throws Throwable {
+        String json = createForecastJson(14);
+        for (int end : new int[]{1, json.indexOf("\"list\""), json.length() / 2, json.length() - 1}) {
+            String truncated = json.substring(0, end);
+
+            boolean treeRejected = false;
+            try {
+                parseAsTree(toStream(truncated), new CollectingCallback());
+            } catch (JSONException e) {
+                treeRejected = true;
+            }
+
+            boolean streamRejected = false;
+            try {
+                ForecastJsonParser.parse(toStream(truncated), JULIAN_START_DAY,
+                        new CollectingCallback());
+            } catch (JSONException e) {
+                streamRejected = true;
+            }
+
+            assertTrue("Error: the tree path accepted a truncated forecast: " + truncated,
+                    treeRejected);
+            assertEquals("Error: the parsers disagree on a truncated forecast: " + truncated,
+                    treeRejected, streamRejected);
+        }
+    }
+
+    /*
+        Not a pass/fail test; logs allocation and timing for both parsers so regressions show up
+        in the test output.
+     */
+    public void testParserBenchmark() throws Throwable {
+        for (int numDays : new int[]{14, 365, 5000}) {
+            byte[] json = createForecastJson(numDays).getBytes("UTF-8");
+
+            // warm up both paths before measuring
+            parseAsTree(new ByteArrayInputStream(json), new CollectingCallback());
+            ForecastJsonParser.parse(new ByteArrayInputStream(json), JULIAN_START_DAY,
+                    new CollectingCallback());
+
+            long treeBytes = 0, treeNanos = 0;
+            long streamBytes = 0, streamNanos = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                long[] tree = measure(json, false);
+                treeBytes += tree[0];
+                treeNanos += tree[1];
+                long[] stream = measure(json, true);
+                streamBytes += stream[0];
+                streamNanos += stream[1];
+            }
+
+            Log.d(LOG_TAG, String.format("%d days (%d bytes): tree %d KB / %.2f ms, "
+                            + "stream %d KB / %.2f ms",
+                    numDays, json.length,
+                    treeBytes / BENCHMARK_ITERATIONS / 1024,
+                    treeNanos / BENCHMARK_ITERATIONS / 1e6,
+                    streamBytes / BENCHMARK_ITERATIONS / 1024,
+                    streamNanos / BENCHMARK_ITERATIONS / 1e6));
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long[] measure(byte[] json, boolean streaming) throws Throwable {
+        CollectingCallback callback = new CollectingCallback();
+        Runtime.getRuntime().gc();
+
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        if (streaming) {
+            ForecastJsonParser.parse(new ByteArrayInputStream(json), JULIAN_START_DAY, callback);
+        } else {
+            parseAsTree(new ByteArrayInputStream(json), callback);
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+
+        return new long[]{Debug.getThreadAllocSize(), elapsed};
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/*
+    The response cache has to find its entries again without ever writing the API key of the
+    request into the cache directory.
+ */
+public class TestForecastResponseCache extends AndroidTestCase {
+
+    private static final String API_KEY = "0123456789abcdef0123456789abcdef";
+    private static final int JULIAN_DAY = 2457012;  // December 20th, 2014
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteEntries();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteEntries();
+        super.tearDown();
+    }
+
+    private File[] listEntries() {
+        File[] files = new File(mContext.getCacheDir(), "forecast_responses_v2").listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    private void deleteEntries() {
+        for (File file : listEntries()) {
+            file.delete();
+        }
+    }
+
+    private static Uri buildRequestUri(String apiKey) {
+        return Uri.parse("http://api.openweathermap.org/data/2.5/forecast/daily?").buildUpon()
+                .appendQueryParameter("q", "99705")
+                .appendQueryParameter("mode", "json")
+                .appendQueryParameter("units", "metric")
+                .appendQueryParameter("cnt", "14")
+                .appendQueryParameter(ForecastResponseCache.APPID_PARAM, apiKey)
+                .build();
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n == -1) {
+                    break;
+                }
+                read += n;
+            }
+            return new String(bytes, 0, read, "ISO-8859-1");
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testWithoutApiKey() {
+        Uri uri = ForecastResponseCache.withoutApiKey(buildRequestUri(API_KEY));
+        assertNull(uri.getQueryParameter(ForecastResponseCache.APPID_PARAM));
+        assertEquals("99705", uri.getQueryParameter("q"));
+        assertEquals("14", uri.getQueryParameter("cnt"));
+        assertEquals(uri, ForecastResponseCache.withoutApiKey(uri));
+    }
+
+    public void testApiKeyIsNotStored() throws IOException {
+        new ForecastResponseCache(mContext, buildRequestUri(API_KEY)).commit(JULIAN_DAY, "hash");
+
+        File[] entries = listEntries();
+        assertEquals(1, entries.length);
+        assertFalse("Error: the API key was written to the cache",
+                entries[0].getName().contains(API_KEY));
+        assertFalse("Error: the API key was written to the cache",
+                read(entries[0]).contains(API_KEY));
+
+        // The entry is found again, with this key or another one
+        assertTrue(new ForecastResponseCache(mContext, buildRequestUri(API_KEY))
+                .isUnchanged(JULIAN_DAY, "hash"));
+        assertTrue(new ForecastResponseCache(mContext, buildRequestUri("another key"))
+                .isUnchanged(JULIAN_DAY, "hash"));
+    }
+}
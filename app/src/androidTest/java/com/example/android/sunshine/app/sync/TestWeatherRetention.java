@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStatsEntry;
+
+public class TestWeatherRetention extends AndroidTestCase {
+
+    private static final String LOCATION_SETTING = "99705";
+    private static final int NUM_DAYS = 120;
+    private static final int DAILY_DAYS = 30;
+    private static final int BATCH_SIZE = 7;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, LOCATION_SETTING);
+        location.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+        mLocationId = ContentUris.parseId(locationUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    // NUM_DAYS days, up to and including today
+    private ContentValues[] createHistory(long now) {
+        Time dayTime = new Time();
+        dayTime.set(now);
+        int today = Time.getJulianDay(now, dayTime.gmtoff);
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(today - i));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 40 + i % 20);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 25.5 + i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 15.5 - i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            days[i] = weatherValues;
+        }
+        return days;
+    }
+
+    public void testCutoffIsAMonday() {
+        long now = System.currentTimeMillis();
+        long cutoff = WeatherRetention.getCutoffDate(now, DAILY_DAYS);
+        Time time = new Time();
+        time.set(cutoff);
+        assertEquals(Time.MONDAY, time.weekDay);
+        assertTrue(cutoff <= now - DAILY_DAYS * 24L * 60 * 60 * 1000);
+        assertTrue(cutoff > now - (DAILY_DAYS + 8) * 24L * 60 * 60 * 1000);
+    }
+
+    public void testPurgeKeepsSummaries() {
+        long now = System.currentTimeMillis();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, createHistory(now));
+        int weeksBefore = countWeeks();
+        long cutoff = WeatherRetention.getCutoffDate(now, DAILY_DAYS);
+
+        WeatherRetention retention =
+                new WeatherRetention(mContext.getContentResolver(), DAILY_DAYS, BATCH_SIZE);
+        int purged = retention.purge(now);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{"MIN(" + WeatherEntry.COLUMN_DATE + ")", "COUNT(*)"},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: days from before the cutoff were left", cutoff, cursor.getLong(0));
+        assertEquals(NUM_DAYS, purged + cursor.getInt(1));
+        cursor.close();
+
+        assertEquals("Error: purging lost the weekly summaries", weeksBefore, countWeeks());
+
+        // Nothing left to do the second time
+        assertEquals(0, retention.purge(now));
+    }
+
+    public void testMaintainDatabase() {
+        long now = System.currentTimeMillis();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, createHistory(now));
+        WeatherRetention retention =
+                new WeatherRetention(mContext.getContentResolver(), DAILY_DAYS, BATCH_SIZE);
+        retention.purge(now);
+
+        long reclaimed = retention.maintainDatabase();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            assertEquals(0, reclaimed);
+        } else {
+            assertTrue(reclaimed >= 0);
+        }
+        // The data is still there afterwards
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION_SETTING), null, null, null, null);
+        assertTrue(cursor.getCount() > 0);
+        cursor.close();
+    }
+
+    // What the sync falls back to when there's no Google Play services to run the task
+    public void testRunIsRecorded() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String lastRunKey = mContext.getString(R.string.pref_last_retention);
+        prefs.edit().remove(lastRunKey).commit();
+        long now = System.currentTimeMillis();
+        assertTrue("Error: retention that never ran wasn't due", WeatherRetention.isDue(mContext, now));
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, createHistory(now));
+        WeatherRetention.run(mContext);
+        assertEquals("Error: the run left days to purge", 0, new WeatherRetention(
+                mContext.getContentResolver(), WeatherRetention.DEFAULT_DAILY_DAYS, BATCH_SIZE)
+                .purge(now));
+        long lastRun = prefs.getLong(lastRunKey, 0);
+        assertFalse("Error: retention was due again straight away",
+                WeatherRetention.isDue(mContext, lastRun + 1));
+        assertTrue(WeatherRetention.isDue(mContext, lastRun + WeatherRetention.RUN_INTERVAL_MILLIS));
+        prefs.edit().remove(lastRunKey).commit();
+    }
+
+    private int countWeeks() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherStatsEntry.buildWeatherStatsUri(LOCATION_SETTING,
+                        WeatherStatsEntry.PERIOD_WEEK),
+                null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
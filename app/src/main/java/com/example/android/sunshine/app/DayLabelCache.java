@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.text.format.Time;
+import android.util.SparseArray;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * The date labels behind Utility's date helpers, memoized by Julian day.  The forecast list,
+ * the detail screen, the widgets and the notifications ask for the same fortnight of days over
+ * and over, and every label used to take a new Time and a new SimpleDateFormat.
+ *
+ * A label like "Tomorrow" is only right for one day, in one locale and time zone, so the cache
+ * empties itself at the next local midnight, when the default locale isn't the one it was
+ * filled in, and on ACTION_TIMEZONE_CHANGED or ACTION_LOCALE_CHANGED.
+ */
+final class DayLabelCache {
+
+    // "Today", "Tomorrow", "Wednesday"
+    static final int DAY_NAME = 0;
+    // "June 24"
+    static final int MONTH_DAY = 1;
+    // "Tomorrow", "Wednesday", "Mon Jun 03"
+    static final int FRIENDLY_DAY = 2;
+    // As FRIENDLY_DAY, except "Today, June 24" for today
+    static final int LONG_FRIENDLY_DAY = 3;
+    // "Wednesday, June 26"
+    static final int FULL_FRIENDLY_DAY = 4;
+    // DateFormat.getDateInstance(), e.g. "Jun 26, 2015"
+    static final int DATE = 5;
+    private static final int LABEL_KINDS = 6;
+
+    // Guarded by DayLabelCache.class, as is everything below.  Keyed by
+    // julianDay * LABEL_KINDS + kind.
+    private static final SparseArray<String> sLabels = new SparseArray<String>();
+    private static long sValidUntil;
+    private static Locale sLocale;
+    private static long sGmtOff;
+    private static int sToday;
+    private static SimpleDateFormat sDayFormat;
+    private static SimpleDateFormat sMonthDayFormat;
+    private static SimpleDateFormat sShortenedDateFormat;
+    private static DateFormat sDateFormat;
+    private static BroadcastReceiver sReceiver;
+
+    private DayLabelCache() {
+    }
+
+    /**
+     * @param context Context to use for resource localization; may only be null for DATE
+     * @param kind one of the label kinds above
+     * @param dateInMillis The date in milliseconds
+     */
+    static synchronized String get(Context context, int kind, long dateInMillis) {
+        if (context != null && sReceiver == null) {
+            registerReceiver(context);
+        }
+        long now = System.currentTimeMillis();
+        if (now >= sValidUntil || Locale.getDefault() != sLocale) {
+            reset(now);
+        }
+
+        return lookup(context, kind, Time.getJulianDay(dateInMillis, sGmtOff), dateInMillis);
+    }
+
+    // Labels made out of other labels come through here rather than get(), so that they can't
+    // be made half before and half after a reset
+    private static String lookup(Context context, int kind, int julianDay, long dateInMillis) {
+        int key = julianDay * LABEL_KINDS + kind;
+        String label = sLabels.get(key);
+        if (label == null) {
+            label = format(context, kind, julianDay, dateInMillis);
+            sLabels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * Empties the cache, so that the next label is made for the time zone and locale of the
+     * moment.
+     */
+    static synchronized void invalidate() {
+        sValidUntil = 0;
+    }
+
+    private static void registerReceiver(Context context) {
+        sReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        appContext.registerReceiver(sReceiver, filter);
+    }
+
+    private static void reset(long now) {
+        sLabels.clear();
+        sLocale = Locale.getDefault();
+        // SimpleDateFormat takes the default time zone when it's made, so these are made again
+        // along with everything else
+        sDayFormat = new SimpleDateFormat("EEEE");
+        sMonthDayFormat = new SimpleDateFormat("MMMM dd");
+        sShortenedDateFormat = new SimpleDateFormat("EEE MMM dd");
+        sDateFormat = DateFormat.getDateInstance();
+
+        Time time = new Time();
+        time.set(now);
+        sGmtOff = time.gmtoff;
+        sToday = Time.getJulianDay(now, sGmtOff);
+        sValidUntil = time.setJulianDay(sToday + 1);
+    }
+
+    private static String format(Context context, int kind, int julianDay, long dateInMillis) {
+        switch (kind) {
+            case DAY_NAME:
+                // If the date is today, return the localized version of "Today" instead of the
+                // actual day name.
+                if (julianDay == sToday) {
+                    return context.getString(R.string.today);
+                } else if (julianDay == sToday + 1) {
+                    return context.getString(R.string.tomorrow);
+                }
+                // Otherwise, the format is just the day of the week (e.g "Wednesday").
+                return sDayFormat.format(dateInMillis);
+            case MONTH_DAY:
+                return sMonthDayFormat.format(dateInMillis);
+            case FRIENDLY_DAY:
+                // If the input date is less than a week in the future, just return the day name.
+                if (julianDay < sToday + 7) {
+                    return lookup(context, DAY_NAME, julianDay, dateInMillis);
+                }
+                // Otherwise, use the form "Mon Jun 3"
+                return sShortenedDateFormat.format(dateInMillis);
+            case LONG_FRIENDLY_DAY:
+                if (julianDay == sToday) {
+                    return context.getString(R.string.format_full_friendly_date,
+                            context.getString(R.string.today),
+                            lookup(context, MONTH_DAY, julianDay, dateInMillis));
+                }
+                return lookup(context, FRIENDLY_DAY, julianDay, dateInMillis);
+            case FULL_FRIENDLY_DAY:
+                return context.getString(R.string.format_full_friendly_date,
+                        lookup(context, DAY_NAME, julianDay, dateInMillis),
+                        lookup(context, MONTH_DAY, julianDay, dateInMillis));
+            case DATE:
+                return sDateFormat.format(dateInMillis);
+            default:
+                throw new IllegalArgumentException("Unknown date label: " + kind);
+        }
+    }
+}
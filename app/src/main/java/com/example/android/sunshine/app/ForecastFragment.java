@@ -24,11 +24,11 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
@@ -48,6 +48,10 @@ import android.widget.TextView;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
  */
@@ -59,10 +63,51 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    // For logging the time to the first forecast on screen
+    private long mCreatedAt;
+    private boolean mFirstForecastShown;
 
     private static final String SELECTED_KEY = "selected_position";
 
+    // FORECAST_LOADER loads the first page of the forecast, FORECAST_LOADER + n the nth page
+    // after it, once the list has been scrolled close enough to it
     private static final int FORECAST_LOADER = 0;
+    private static final int PAGE_SIZE = 60;
+    // How close to either end of the loaded days the page beyond it is asked for
+    private static final int PAGE_PREFETCH = 10;
+    // How many pages either side of the visible ones stay loaded
+    private static final int KEEP_PAGES = 1;
+    private static final String ARG_AFTER_DATE = "after_date";
+    private static final String PAGES_KEY = "page_after_dates";
+    private static final String FIRST_PAGE_KEY = "first_page";
+
+    /*
+        One page of the forecast.  Only the pages around the visible rows are kept loaded, so
+        that the cursors held, and the queries run again on every change to the weather, don't
+        grow with how far the list has been scrolled.  Pages further down are dropped and
+        paged to again; pages further up are released, and loaded again from their afterDate
+        when the list is scrolled back to them.
+     */
+    private static final class Page {
+        // The day the page starts after; -1 for the first page, which starts today
+        final long afterDate;
+        // null while the page is loading or released
+        Cursor cursor;
+        // The last day the page held when it was last loaded; -1 if it hasn't held any yet
+        long lastDate = -1;
+        // Whether the page has a loader, that is, it hasn't been released
+        boolean active = true;
+
+        Page(long afterDate) {
+            this.afterDate = afterDate;
+        }
+    }
+
+    // The pages, in order.  The list shows the loaded ones from mFirstPage on; those before it
+    // have been released.
+    private final ArrayList<Page> mPages = new ArrayList<Page>();
+    private int mFirstPage;
+
     // For the forecast view we're showing only a small subset of the stored data.
     // Specify the columns we need.
     private static final String[] FORECAST_COLUMNS = {
@@ -115,6 +160,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         super.onCreate(savedInstanceState);
         // Add this line in order for this fragment to handle menu events.
         setHasOptionsMenu(true);
+        mCreatedAt = SystemClock.elapsedRealtime();
     }
 
     @Override
@@ -200,6 +246,13 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // specify an adapter (see also next example)
         mRecyclerView.setAdapter(mForecastAdapter);
 
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                updatePages();
+            }
+        });
+
         final View parallaxView = rootView.findViewById(R.id.parallax_bar);
         if (null != parallaxView) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -259,23 +312,143 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         if ( mHoldForTransition ) {
             getActivity().supportPostponeEnterTransition();
         }
-        getLoaderManager().initLoader(FORECAST_LOADER, null, this);
+        mPages.clear();
+        mFirstPage = 0;
+        long[] afterDates = null;
+        if (null != savedInstanceState) {
+            afterDates = savedInstanceState.getLongArray(PAGES_KEY);
+            mFirstPage = savedInstanceState.getInt(FIRST_PAGE_KEY, 0);
+        }
+        if (null == afterDates || mFirstPage >= afterDates.length) {
+            afterDates = new long[]{-1};
+            mFirstPage = 0;
+        }
+        // The pages loaded before a configuration change are still there; pick them back up
+        for (int p = 0; p < afterDates.length; p++) {
+            mPages.add(new Page(afterDates[p]));
+            if (p < mFirstPage) {
+                mPages.get(p).active = false;
+            } else {
+                startPage(p);
+            }
+        }
         super.onActivityCreated(savedInstanceState);
     }
 
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged() {
+        destroyPagesAfter(0);
+        mFirstPage = 0;
+        Page first = mPages.get(0);
+        first.active = true;
+        first.lastDate = -1;
+        swapPages();
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
     }
 
+    private void startPage(int p) {
+        Page page = mPages.get(p);
+        page.active = true;
+        Bundle args = null;
+        if (-1 != page.afterDate) {
+            args = new Bundle();
+            args.putLong(ARG_AFTER_DATE, page.afterDate);
+        }
+        getLoaderManager().initLoader(FORECAST_LOADER + p, args, this);
+    }
+
+    /*
+        Keeps the pages loaded to KEEP_PAGES either side of the visible ones.  Dropping the
+        pages beyond that closes their cursors and stops their loaders from querying again on
+        every change.  The page before the first loaded one is loaded again once the list is
+        scrolled to within PAGE_PREFETCH days of its start, and the page after the last one
+        once it's scrolled to within PAGE_PREFETCH days of its end, unless the last page came
+        back short, which means there's nothing after it.
+     */
+    private void updatePages() {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) mRecyclerView.getLayoutManager();
+        int firstVisible = layoutManager.findFirstVisibleItemPosition();
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        if (RecyclerView.NO_POSITION == firstVisible) {
+            return;
+        }
+        // Every page but the last is a full one
+        int firstVisiblePage = mFirstPage + firstVisible / PAGE_SIZE;
+        int lastVisiblePage = mFirstPage + lastVisible / PAGE_SIZE;
+
+        boolean changed = false;
+        if (lastVisiblePage + KEEP_PAGES < mPages.size() - 1) {
+            destroyPagesAfter(lastVisiblePage + KEEP_PAGES);
+            changed = true;
+        }
+        while (mFirstPage < firstVisiblePage - KEEP_PAGES) {
+            releasePage(mFirstPage);
+            mFirstPage++;
+            changed = true;
+        }
+        if (changed) {
+            swapPages();
+        }
+
+        if (mFirstPage > 0 && firstVisible < PAGE_PREFETCH && !mPages.get(mFirstPage - 1).active) {
+            startPage(mFirstPage - 1);
+        }
+        Cursor lastPage = mPages.get(mPages.size() - 1).cursor;
+        if (null != lastPage && lastPage.getCount() == PAGE_SIZE
+                && lastVisible >= mForecastAdapter.getItemCount() - PAGE_PREFETCH) {
+            mPages.add(new Page(getLastDate(lastPage)));
+            startPage(mPages.size() - 1);
+        }
+    }
+
+    // Closes the page's cursor, but keeps its place so it can be loaded again
+    private void releasePage(int p) {
+        Page page = mPages.get(p);
+        page.active = false;
+        page.cursor = null;
+        getLoaderManager().destroyLoader(FORECAST_LOADER + p);
+    }
+
+    // -1 for an empty page
+    private static long getLastDate(Cursor page) {
+        return page.moveToLast() ? page.getLong(COL_WEATHER_DATE) : -1;
+    }
+
+    /*
+        Drops the pages after the given one, e.g. because where it ends has moved and they would
+        now leave out or repeat days.
+     */
+    private void destroyPagesAfter(int page) {
+        for (int p = mPages.size() - 1; p > page; p--) {
+            mPages.remove(p);
+            getLoaderManager().destroyLoader(FORECAST_LOADER + p);
+        }
+    }
+
+    /*
+        Hands the adapter the items of the pages loaded from mFirstPage on, as one list.  They
+        were worked out when each page loaded, so this is only a copy of references.
+     */
+    private void swapPages() {
+        List<ForecastItem> items = new ArrayList<ForecastItem>();
+        for (int p = mFirstPage; p < mPages.size(); p++) {
+            Cursor page = mPages.get(p).cursor;
+            if (null == page) {
+                break;
+            }
+            items.addAll(((ForecastLoader.ForecastCursor) page).getItems());
+        }
+        mForecastAdapter.swapItems(Collections.unmodifiableList(items));
+    }
+
     private void openPreferredLocationInMap() {
         // Using the URI scheme for showing a location found on a map.  This super-handy
         // intent can is detailed in the "Common Intents" page of Android's developer site:
         // http://developer.android.com/guide/components/intents-common.html#Maps
         if (null != mForecastAdapter) {
-            Cursor c = mForecastAdapter.getCursor();
-            if (null != c) {
-                c.moveToPosition(0);
+            // Every day has the location's coordinates, so any loaded page will do
+            Cursor c = mFirstPage < mPages.size() ? mPages.get(mFirstPage).cursor : null;
+            if (null != c && c.moveToFirst()) {
                 String posLat = c.getString(COL_COORD_LAT);
                 String posLong = c.getString(COL_COORD_LONG);
                 Uri geoLocation = Uri.parse("geo:" + posLat + "," + posLong);
@@ -297,14 +470,19 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     public void onSaveInstanceState(Bundle outState) {
         // When tablets rotate, the currently selected list item needs to be saved.
         mForecastAdapter.onSaveInstanceState(outState);
+        long[] afterDates = new long[mPages.size()];
+        for (int p = 0; p < afterDates.length; p++) {
+            afterDates[p] = mPages.get(p).afterDate;
+        }
+        outState.putLongArray(PAGES_KEY, afterDates);
+        outState.putInt(FIRST_PAGE_KEY, mFirstPage);
         super.onSaveInstanceState(outState);
     }
 
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // This is called when a new Loader needs to be created.  This
-        // fragment only uses one loader, so we don't care about checking the id.
+        // This is called when a new Loader needs to be created.  The id is the page to load.
 
         // To only show current and future dates, filter the query to return weather only for
         // dates after or including today.
@@ -313,21 +491,54 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
 
         String locationSetting = Utility.getPreferredLocation(getActivity());
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis());
+        Uri weatherForLocationUri;
+        if (i == FORECAST_LOADER) {
+            weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationPage(
+                    locationSetting, System.currentTimeMillis(), PAGE_SIZE);
+        } else {
+            weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationAfter(
+                    locationSetting, bundle.getLong(ARG_AFTER_DATE), PAGE_SIZE);
+        }
 
-        return new CursorLoader(getActivity(),
+        return new ForecastLoader(getActivity(),
                 weatherForLocationUri,
                 FORECAST_COLUMNS,
-                null,
-                null,
-                sortOrder);
+                sortOrder,
+                i == FORECAST_LOADER);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
+        int p = loader.getId() - FORECAST_LOADER;
+        if (p >= mPages.size() || !mPages.get(p).active) {
+            // A page that was dropped or released while it was loading
+            getLoaderManager().destroyLoader(loader.getId());
+            return;
+        }
+        Page page = mPages.get(p);
+        page.cursor = data;
+        long lastDate = getLastDate(data);
+        if (-1 != page.lastDate && page.lastDate != lastDate) {
+            destroyPagesAfter(p);
+        }
+        page.lastDate = lastDate;
+        // A released page that was scrolled back to
+        boolean scrolledBack = p < mFirstPage;
+        if (scrolledBack) {
+            mFirstPage = p;
+        }
+        swapPages();
+        if (scrolledBack || p != mFirstPage) {
+            // Everything below is about the list as it first appears
+            return;
+        }
         updateEmptyView();
+        if (!mFirstForecastShown && data.getCount() > 0) {
+            // How long the user looks at an empty list, e.g. after a database upgrade
+            mFirstForecastShown = true;
+            Log.d(LOG_TAG, "Time to first forecast: "
+                    + (SystemClock.elapsedRealtime() - mCreatedAt) + " ms");
+        }
         if ( data.getCount() == 0 ) {
             getActivity().supportStartPostponedEnterTransition();
         } else {
@@ -341,12 +552,9 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                         int position = mForecastAdapter.getSelectedItemPosition();
                         if (position == RecyclerView.NO_POSITION &&
                                 -1 != mInitialSelectedDate) {
-                            Cursor data = mForecastAdapter.getCursor();
-                            int count = data.getCount();
-                            int dateColumn = data.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+                            int count = mForecastAdapter.getItemCount();
                             for ( int i = 0; i < count; i++ ) {
-                                data.moveToPosition(i);
-                                if ( data.getLong(dateColumn) == mInitialSelectedDate ) {
+                                if ( mForecastAdapter.getItem(i).date == mInitialSelectedDate ) {
                                     position = i;
                                     break;
                                 }
@@ -384,7 +592,16 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mForecastAdapter.swapCursor(null);
+        int p = loader.getId() - FORECAST_LOADER;
+        if (p >= mPages.size() || !mPages.get(p).active) {
+            // Dropped or released, and already out of the list
+            return;
+        }
+        while (mPages.size() > p + 1) {
+            mPages.remove(mPages.size() - 1);
+        }
+        mPages.get(p).cursor = null;
+        swapPages();
     }
 
     public void setUseTodayLayout(boolean useTodayLayout) {
@@ -432,6 +649,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (key.equals(getString(R.string.pref_location_status_key))) {
+            // Utility's own listener may not have been called yet
+            Utility.refreshSettings(getActivity());
             updateEmptyView();
         }
     }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One row of the forecast list, with everything {@link ForecastAdapter} shows already worked
+ * out: the formatted strings, their content descriptions and the images.  Built by
+ * {@link ForecastLoader} on its background thread, so that binding a row while the list
+ * scrolls only sets views.
+ */
+public final class ForecastItem {
+    public final long date;
+    public final int weatherId;
+
+    // The day as the list shows it, e.g. "Wednesday"
+    public final String dayString;
+    // The day as the today layout shows it, e.g. "Today, June 24"
+    public final String longDayString;
+
+    public final String description;
+    public final String descriptionA11y;
+    public final String high;
+    public final String highA11y;
+    public final String low;
+    public final String lowA11y;
+
+    public final int iconResourceId;
+    public final int artResourceId;
+    // null when the local graphics are used, in which case the resources are all there is
+    public final String artUrl;
+
+    private ForecastItem(Context context, Cursor cursor, boolean isMetric,
+                         boolean usingLocalGraphics, boolean canBeToday) {
+        date = cursor.getLong(ForecastFragment.COL_WEATHER_DATE);
+        weatherId = cursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
+
+        dayString = Utility.getFriendlyDayString(context, date, false);
+        longDayString = canBeToday ? Utility.getFriendlyDayString(context, date, true) : dayString;
+
+        WeatherCondition condition = WeatherCondition.get(weatherId);
+        description = condition.getString(context);
+        descriptionA11y = context.getString(R.string.a11y_forecast, description);
+        high = Utility.formatTemperature(context,
+                cursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP), isMetric);
+        highA11y = context.getString(R.string.a11y_high_temp, high);
+        low = Utility.formatTemperature(context,
+                cursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP), isMetric);
+        lowA11y = context.getString(R.string.a11y_low_temp, low);
+
+        iconResourceId = condition.iconResourceId;
+        artResourceId = condition.artResourceId;
+        artUrl = usingLocalGraphics ? null : Utility.getArtUrlForArtKey(context, condition.artKey);
+    }
+
+    /**
+     * @return whether the row would look the same for the other item, to tell whether a row
+     * needs binding again when the list is reloaded
+     */
+    public boolean sameContentsAs(ForecastItem other) {
+        return date == other.date
+                && weatherId == other.weatherId
+                && TextUtils.equals(dayString, other.dayString)
+                && TextUtils.equals(longDayString, other.longDayString)
+                && TextUtils.equals(description, other.description)
+                && TextUtils.equals(high, other.high)
+                && TextUtils.equals(low, other.low)
+                && iconResourceId == other.iconResourceId
+                && artResourceId == other.artResourceId
+                && TextUtils.equals(artUrl, other.artUrl);
+    }
+
+    /**
+     * Builds the items for every row of a page of ForecastFragment.FORECAST_COLUMNS.  The
+     * preferences are read once for the whole page.
+     *
+     * @param firstPage whether the page is the first one, whose first row can be shown with
+     *                  the today layout
+     * @return an unmodifiable list, in the cursor's order
+     */
+    public static List<ForecastItem> fromCursor(Context context, Cursor cursor,
+                                                boolean firstPage) {
+        boolean isMetric = Utility.isMetric(context);
+        boolean usingLocalGraphics = Utility.usingLocalGraphics(context);
+        List<ForecastItem> items = new ArrayList<ForecastItem>(cursor.getCount());
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            items.add(new ForecastItem(context, cursor, isMetric, usingLocalGraphics,
+                    firstPage && i == 0));
+        }
+        return Collections.unmodifiableList(items);
+    }
+}
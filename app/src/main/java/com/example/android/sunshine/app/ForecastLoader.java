@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+import java.util.List;
+
+/**
+ * Loads a page of the forecast list and works out its {@link ForecastItem}s on the loader's
+ * background thread.  Otherwise a CursorLoader like any other: it reloads when the forecast
+ * changes, and when the units or art pack do, since the settings notify the weather URI.
+ */
+public class ForecastLoader extends CursorLoader {
+
+    /**
+     * The page as loaded, with its items.  The cursor is still there for what the items leave
+     * out, e.g. the location's coordinates.
+     */
+    public static class ForecastCursor extends CursorWrapper {
+        private final List<ForecastItem> mItems;
+
+        ForecastCursor(Cursor cursor, List<ForecastItem> items) {
+            super(cursor);
+            mItems = items;
+        }
+
+        public List<ForecastItem> getItems() {
+            return mItems;
+        }
+    }
+
+    private final boolean mFirstPage;
+
+    public ForecastLoader(Context context, Uri uri, String[] projection, String sortOrder,
+                          boolean firstPage) {
+        super(context, uri, projection, null, null, sortOrder);
+        mFirstPage = firstPage;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = super.loadInBackground();
+        if (cursor == null) {
+            return null;
+        }
+        return new ForecastCursor(cursor,
+                ForecastItem.fromCursor(getContext(), cursor, mFirstPage));
+    }
+}
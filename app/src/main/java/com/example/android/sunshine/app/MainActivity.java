@@ -33,6 +33,7 @@ import android.view.View;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.gcm.RegistrationIntentService;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.WeatherRetentionTaskService;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 
@@ -96,6 +97,10 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
         // our fake server. Because weather alerts are not a core feature of the app, this should
         // not affect the behavior of the app, from a user perspective.
         if (checkPlayServices()) {
+            // Old weather is purged by a task run by Google Play services as well.  Without it,
+            // the sync does the purge itself once a day.
+            WeatherRetentionTaskService.schedule(this);
+
             // Because this is the initial creation of the app, we'll want to be certain we have
             // a token. If we do not, then we will start the IntentService that will register this
             // application with GCM.
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+
+import com.example.android.sunshine.app.data.WeatherContract.CurrentSummaryEntry;
+
+/**
+ * What Sunshine shows for an OpenWeatherMap weather condition id: its icon, artwork, art key,
+ * Muzei image and description.  Every id up to the highest known one is worked out once, into
+ * an array indexed by the id, so that a lookup is an array access rather than the range
+ * comparisons and switch statements Utility used to go through for each of them.
+ *
+ * Which artwork a condition gets is decided by CurrentSummaryEntry's art keys, the same ones
+ * the provider writes into current_summary; everything else about the artwork is looked up
+ * here by art key.
+ */
+public final class WeatherCondition {
+
+    // Based on weather code data found at:
+    // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+    private static final int MAX_WEATHER_ID = 962;
+
+    // The icon, art resource and Muzei image of each art key
+    private static final String[] ART_KEYS = {
+            "storm", "light_rain", "rain", "snow", "fog", "clear", "light_clouds", "clouds"
+    };
+    private static final int[][] ART_RESOURCES = {
+            {R.drawable.ic_storm, R.drawable.art_storm},
+            {R.drawable.ic_light_rain, R.drawable.art_light_rain},
+            {R.drawable.ic_rain, R.drawable.art_rain},
+            {R.drawable.ic_snow, R.drawable.art_snow},
+            {R.drawable.ic_fog, R.drawable.art_fog},
+            {R.drawable.ic_clear, R.drawable.art_clear},
+            {R.drawable.ic_light_clouds, R.drawable.art_light_clouds},
+            {R.drawable.ic_cloudy, R.drawable.art_clouds}
+    };
+    private static final String[] IMAGE_URLS = {
+            "http://upload.wikimedia.org/wikipedia/commons/2/28/Thunderstorm_in_Annemasse,_France.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/a/a0/Rain_on_leaf_504605006.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/6/6c/Rain-on-Thassos.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/b/b8/Fresh_snow.JPG",
+            "http://upload.wikimedia.org/wikipedia/commons/e/e6/Westminster_fog_-_London_-_UK.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/7/7e/A_few_trees_and_the_sun_(6009964513).jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/e/e7/Cloudy_Blue_Sky_(5031259890).jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/5/54/Cloudy_hills_in_Elis,_Greece_2.jpg"
+    };
+    // A tornado gets the storm artwork, but a picture of its own in Muzei
+    private static final int TORNADO = 781;
+    private static final String TORNADO_IMAGE_URL =
+            "http://upload.wikimedia.org/wikipedia/commons/d/dc/Raised_dust_ahead_of_a_severe_thunderstorm_1.jpg";
+
+    // The description of each id that has one of its own, and of the ranges that share one
+    private static final int[][] STRINGS = {
+            {500, R.string.condition_500}, {501, R.string.condition_501},
+            {502, R.string.condition_502}, {503, R.string.condition_503},
+            {504, R.string.condition_504}, {511, R.string.condition_511},
+            {520, R.string.condition_520}, {531, R.string.condition_531},
+            {600, R.string.condition_600}, {601, R.string.condition_601},
+            {602, R.string.condition_602}, {611, R.string.condition_611},
+            {612, R.string.condition_612}, {615, R.string.condition_615},
+            {616, R.string.condition_616}, {620, R.string.condition_620},
+            {621, R.string.condition_621}, {622, R.string.condition_622},
+            {701, R.string.condition_701}, {711, R.string.condition_711},
+            {721, R.string.condition_721}, {731, R.string.condition_731},
+            {741, R.string.condition_741}, {751, R.string.condition_751},
+            {761, R.string.condition_761}, {762, R.string.condition_762},
+            {771, R.string.condition_771}, {781, R.string.condition_781},
+            {800, R.string.condition_800}, {801, R.string.condition_801},
+            {802, R.string.condition_802}, {803, R.string.condition_803},
+            {804, R.string.condition_804}, {900, R.string.condition_900},
+            {901, R.string.condition_901}, {902, R.string.condition_902},
+            {903, R.string.condition_903}, {904, R.string.condition_904},
+            {905, R.string.condition_905}, {906, R.string.condition_906},
+            {951, R.string.condition_951}, {952, R.string.condition_952},
+            {953, R.string.condition_953}, {954, R.string.condition_954},
+            {955, R.string.condition_955}, {956, R.string.condition_956},
+            {957, R.string.condition_957}, {958, R.string.condition_958},
+            {959, R.string.condition_959}, {960, R.string.condition_960},
+            {961, R.string.condition_961}, {962, R.string.condition_962}
+    };
+    private static final int[][] STRING_RANGES = {
+            {200, 232, R.string.condition_2xx}, {300, 321, R.string.condition_3xx}
+    };
+
+    private static final WeatherCondition[] sConditions = new WeatherCondition[MAX_WEATHER_ID + 1];
+
+    static {
+        int[] stringIds = new int[MAX_WEATHER_ID + 1];
+        for (int[] range : STRING_RANGES) {
+            for (int weatherId = range[0]; weatherId <= range[1]; weatherId++) {
+                stringIds[weatherId] = range[2];
+            }
+        }
+        for (int[] string : STRINGS) {
+            stringIds[string[0]] = string[1];
+        }
+
+        for (int weatherId = 0; weatherId <= MAX_WEATHER_ID; weatherId++) {
+            String artKey = CurrentSummaryEntry.getArtKeyForWeatherCondition(weatherId);
+            int art = -1;
+            for (int i = 0; artKey != null && i < ART_KEYS.length; i++) {
+                if (ART_KEYS[i].equals(artKey)) {
+                    art = i;
+                    break;
+                }
+            }
+            if (art == -1) {
+                sConditions[weatherId] = new WeatherCondition(weatherId, stringIds[weatherId]);
+            } else {
+                sConditions[weatherId] = new WeatherCondition(weatherId, stringIds[weatherId],
+                        ART_KEYS[art], ART_RESOURCES[art][0], ART_RESOURCES[art][1],
+                        weatherId == TORNADO ? TORNADO_IMAGE_URL : IMAGE_URLS[art]);
+            }
+        }
+    }
+
+    public final int weatherId;
+    // -1 if there's no icon or artwork for the condition
+    public final int iconResourceId;
+    public final int artResourceId;
+    // The name of the artwork, as filled into the art pack URL format; null if there's none
+    public final String artKey;
+    // The picture Muzei shows; null if there's none
+    public final String imageUrl;
+    // 0 if the condition isn't one Sunshine has a description for
+    private final int mStringId;
+
+    private WeatherCondition(int weatherId, int stringId, String artKey, int iconResourceId,
+                             int artResourceId, String imageUrl) {
+        this.weatherId = weatherId;
+        mStringId = stringId;
+        this.artKey = artKey;
+        this.iconResourceId = iconResourceId;
+        this.artResourceId = artResourceId;
+        this.imageUrl = imageUrl;
+    }
+
+    private WeatherCondition(int weatherId, int stringId) {
+        this(weatherId, stringId, null, -1, -1, null);
+    }
+
+    /**
+     * @param weatherId from OpenWeatherMap API response
+     * @return the condition; one with no artwork and an "unknown" description for an id
+     * Sunshine doesn't know
+     */
+    public static WeatherCondition get(int weatherId) {
+        if (weatherId >= 0 && weatherId <= MAX_WEATHER_ID) {
+            return sConditions[weatherId];
+        }
+        return new WeatherCondition(weatherId, 0);
+    }
+
+    /**
+     * @param context Android context
+     * @return the description of the condition, e.g. "Light Rain"
+     */
+    public String getString(Context context) {
+        if (mStringId == 0) {
+            return context.getString(R.string.condition_unknown, weatherId);
+        }
+        return context.getString(mStringId);
+    }
+}
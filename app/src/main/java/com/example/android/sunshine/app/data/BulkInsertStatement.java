@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.Map;
+
+/**
+ * Inserts rows into one table through a single compiled INSERT statement.
+ *
+ * SQLiteDatabase.insert builds and compiles a new INSERT for every row it is given.  Here the
+ * statement is compiled once, from the columns of the first row, and every following row with
+ * the same columns is only bound and executed.  A row with different columns just compiles a
+ * new statement.
+ *
+ * Meant to be used inside a transaction and closed when done.  Not thread safe.
+ */
+class BulkInsertStatement {
+    private static final String LOG_TAG = BulkInsertStatement.class.getSimpleName();
+
+    private final SQLiteDatabase mDb;
+    private final String mTable;
+    private final String mDateColumn;
+    // Reused for every date we normalize
+    private final Time mTime = new Time();
+
+    private SQLiteStatement mStatement;
+    private String[] mColumns;
+
+    /**
+     * @param db the database to insert into
+     * @param table the table to insert into
+     * @param dateColumn a column to run through {@link WeatherContract#normalizeDate(long, Time)}
+     *                   before it is stored, or null
+     */
+    BulkInsertStatement(SQLiteDatabase db, String table, String dateColumn) {
+        mDb = db;
+        mTable = table;
+        mDateColumn = dateColumn;
+    }
+
+    /**
+     * Inserts one row.  Like SQLiteDatabase.insert, a row that can't be inserted is logged
+     * rather than thrown.
+     *
+     * @return the row ID of the new row, or -1 if it couldn't be inserted.
+     */
+    long insert(ContentValues values) {
+        if (values.size() == 0) {
+            Log.e(LOG_TAG, "Nothing to insert into " + mTable);
+            return -1;
+        }
+        if (mDateColumn != null && values.containsKey(mDateColumn)) {
+            values.put(mDateColumn,
+                    WeatherContract.normalizeDate(values.getAsLong(mDateColumn), mTime));
+        }
+
+        try {
+            if (!hasColumnsOf(values)) {
+                compile(values);
+            }
+            mStatement.clearBindings();
+            for (int i = 0; i < mColumns.length; i++) {
+                // bind indices are 1-based
+                DatabaseUtils.bindObjectToProgram(mStatement, i + 1, values.get(mColumns[i]));
+            }
+            return mStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values + " into " + mTable, e);
+            return -1;
+        }
+    }
+
+    void close() {
+        if (mStatement != null) {
+            mStatement.close();
+            mStatement = null;
+        }
+    }
+
+    private boolean hasColumnsOf(ContentValues values) {
+        if (mStatement == null || mColumns.length != values.size()) {
+            return false;
+        }
+        for (String column : mColumns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compile(ContentValues values) {
+        close();
+        mColumns = new String[values.size()];
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(mTable).append(" (");
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            mColumns[i] = entry.getKey();
+            sql.append(i > 0 ? "," : "").append(mColumns[i]);
+            i++;
+        }
+        sql.append(") VALUES (");
+        for (i = 0; i < mColumns.length; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        sql.append(')');
+        mStatement = mDb.compileStatement(sql.toString());
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps copies of recent query results, so that the loader, the widgets, Muzei and the
+ * notification asking for the same forecast one after the other only hit SQLite once.
+ *
+ * Every write bumps the write generation, and a result read under an older generation is never
+ * handed out again.  Results are evicted least recently used first once their estimated size
+ * goes over the budget.
+ */
+class QueryCache {
+
+    // Rough sizes, in bytes, used to keep the cache within its budget
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int VALUE_OVERHEAD = 16;
+
+    private final long mMaxBytes;
+    private final int mMaxRows;
+    private final AtomicLong mWriteGeneration = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    // access order, so that iterating starts at the least recently used
+    private final LinkedHashMap<String, Snapshot> mSnapshots =
+            new LinkedHashMap<String, Snapshot>(16, 0.75f, true);
+    private long mBytes;
+
+    /**
+     * @param maxBytes the estimated size all the results together may take up
+     * @param maxRows  results with more rows than this aren't kept at all
+     */
+    QueryCache(long maxBytes, int maxRows) {
+        mMaxBytes = maxBytes;
+        mMaxRows = maxRows;
+    }
+
+    /**
+     * An unchanging copy of a query result.
+     */
+    private static class Snapshot {
+        final long generation;
+        final String[] columnNames;
+        final Object[][] rows;
+        final long bytes;
+
+        Snapshot(long generation, String[] columnNames, Object[][] rows, long bytes) {
+            this.generation = generation;
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columnNames, rows.length);
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    static String buildKey(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        return uri + "\n" + Arrays.toString(projection) + "\n" + selection + "\n" +
+                Arrays.toString(selectionArgs) + "\n" + sortOrder;
+    }
+
+    /**
+     * Call before running the query whose result will be passed to {@link #put}.
+     */
+    long getWriteGeneration() {
+        return mWriteGeneration.get();
+    }
+
+    /**
+     * Call once a write has been committed.
+     */
+    void onWrite() {
+        mWriteGeneration.incrementAndGet();
+    }
+
+    /**
+     * @return a new cursor over the cached result, or null if there's none from the current
+     * write generation.
+     */
+    Cursor get(String key) {
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = mSnapshots.get(key);
+            if (snapshot != null && snapshot.generation != mWriteGeneration.get()) {
+                mSnapshots.remove(key);
+                mBytes -= snapshot.bytes;
+                snapshot = null;
+            }
+        }
+        if (snapshot == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return snapshot.newCursor();
+    }
+
+    /**
+     * Copies the result into the cache, if it is small enough, and returns a cursor to use in
+     * place of the one passed in, which is consumed.
+     *
+     * @param generation what {@link #getWriteGeneration()} returned before the query ran.
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || cursor.getCount() > mMaxRows) {
+            // Cursor.getType() isn't there to copy the values with
+            return cursor;
+        }
+        Snapshot snapshot = copy(generation, cursor);
+        cursor.close();
+        if (snapshot.bytes <= mMaxBytes) {
+            synchronized (this) {
+                if (generation == mWriteGeneration.get()) {
+                    Snapshot previous = mSnapshots.put(key, snapshot);
+                    if (previous != null) {
+                        mBytes -= previous.bytes;
+                    }
+                    mBytes += snapshot.bytes;
+                    trim();
+                }
+            }
+        }
+        return snapshot.newCursor();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Snapshot>> iterator = mSnapshots.entrySet().iterator();
+        long currentGeneration = mWriteGeneration.get();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Snapshot snapshot = iterator.next().getValue();
+            iterator.remove();
+            mBytes -= snapshot.bytes;
+        }
+        // Stale results will never be handed out, don't let them take up the budget
+        iterator = mSnapshots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Snapshot snapshot = iterator.next().getValue();
+            if (snapshot.generation != currentGeneration) {
+                iterator.remove();
+                mBytes -= snapshot.bytes;
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Snapshot copy(long generation, Cursor cursor) {
+        String[] columnNames = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        long bytes = ENTRY_OVERHEAD;
+        cursor.moveToPosition(-1);
+        for (int r = 0; cursor.moveToNext(); r++) {
+            Object[] row = new Object[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                bytes += VALUE_OVERHEAD;
+                switch (cursor.getType(c)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[c] = cursor.getLong(c);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[c] = cursor.getDouble(c);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String value = cursor.getString(c);
+                        bytes += 2 * value.length();
+                        row[c] = value;
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(c);
+                        bytes += blob.length;
+                        row[c] = blob;
+                        break;
+                    default:
+                        row[c] = null;
+                }
+            }
+            rows[r] = row;
+        }
+        return new Snapshot(generation, columnNames, rows, bytes);
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    synchronized long getSizeBytes() {
+        return mBytes;
+    }
+
+    synchronized void clear() {
+        mSnapshots.clear();
+        mBytes = 0;
+    }
+}
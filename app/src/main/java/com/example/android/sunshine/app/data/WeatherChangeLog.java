@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherChangesEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Appends the weather rows a write touched to the weather_changes table.
+ *
+ * Days are collected with {@link #add} while the write runs, and written by {@link #apply} in
+ * its transaction, so a change is in the log if and only if it was committed.
+ */
+class WeatherChangeLog {
+
+    // The weather_changes table only keeps this many of the most recent rows
+    static final int MAX_ROWS = 5000;
+
+    private static final String SQL_INSERT_CHANGE = "INSERT INTO " + WeatherChangesEntry.TABLE_NAME +
+            " (" + WeatherChangesEntry.COLUMN_LOC_KEY + ", " +
+            WeatherChangesEntry.COLUMN_DATE + ", " +
+            WeatherChangesEntry.COLUMN_OPERATION + ") VALUES (?, ?, ?)";
+
+    private static final String SQL_TRIM = "DELETE FROM " + WeatherChangesEntry.TABLE_NAME +
+            " WHERE " + WeatherChangesEntry._ID + " <= (SELECT MAX(" + WeatherChangesEntry._ID +
+            ") FROM " + WeatherChangesEntry.TABLE_NAME + ") - " + MAX_ROWS;
+
+    private static class Change {
+        final long locationId;
+        final long date;
+        final String operation;
+
+        Change(long locationId, long date, String operation) {
+            this.locationId = locationId;
+            this.date = date;
+            this.operation = operation;
+        }
+    }
+
+    private final List<Change> mChanges = new ArrayList<Change>();
+
+    /**
+     * @param operation one of the WeatherChangesEntry.OPERATION_ values
+     */
+    void add(long locationId, long date, String operation) {
+        mChanges.add(new Change(locationId, date, operation));
+    }
+
+    /**
+     * Writes the changes collected so far.  Call inside the transaction of the write, after it.
+     */
+    void apply(SQLiteDatabase db) {
+        if (mChanges.isEmpty()) {
+            return;
+        }
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_CHANGE);
+        try {
+            for (Change change : mChanges) {
+                insert.bindLong(1, change.locationId);
+                insert.bindLong(2, change.date);
+                insert.bindString(3, change.operation);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+        mChanges.clear();
+        db.execSQL(SQL_TRIM);
+    }
+}
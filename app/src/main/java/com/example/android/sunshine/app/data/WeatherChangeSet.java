@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherChangesEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The URIs that a write, or a whole batch of writes, has to notify.
+ *
+ * Weather rows are collected as the (location_id, date) pairs that were written, and turned into
+ * the narrowest URIs that cover them: weather/[location]/[date] if only one day of a location
+ * changed, weather/[location] otherwise.  Observers of the other locations aren't woken up.
+ * Both are below weather/, so observers of the whole table still hear about everything.
+ * Any weather write is also notified on changes/, for readers of the change log.
+ */
+class WeatherChangeSet {
+
+    private final Set<Uri> mUris = new LinkedHashSet<Uri>();
+    // location_id -> the dates written for it, up to the second one; past that it only matters
+    // that there's more than one
+    private final Map<Long, Set<Long>> mWeatherDates = new LinkedHashMap<Long, Set<Long>>();
+    private boolean mLocationsRewritten;
+
+    boolean isEmpty() {
+        return mUris.isEmpty() && mWeatherDates.isEmpty();
+    }
+
+    /**
+     * Notifies this URI as it is, e.g. for the location table.
+     */
+    void add(Uri uri) {
+        mUris.add(uri);
+    }
+
+    /**
+     * Records that the weather row of this location and day was written.
+     */
+    void addWeather(Long locationId, Long date) {
+        if (locationId == null || date == null) {
+            // Can't tell whose row it was
+            mUris.add(WeatherEntry.CONTENT_URI);
+            return;
+        }
+        Set<Long> dates = mWeatherDates.get(locationId);
+        if (dates == null) {
+            dates = new LinkedHashSet<Long>();
+            mWeatherDates.put(locationId, dates);
+        }
+        if (dates.size() < 2) {
+            dates.add(date);
+        }
+    }
+
+    /**
+     * Records the weather rows an update or delete is about to touch.  Must be called before
+     * the write, while the rows still match the selection.
+     *
+     * @param newValues the values an update writes, or null for a delete.  A row moved to
+     *                  another location or day is recorded at both.
+     * @param stats     if not null, the weeks and months of those rows are marked in it too,
+     *                  so the write doesn't need a query of its own to find them.
+     * @param log       if not null, the rows are added to it, as updates or deletes.  A moved
+     *                  row is a delete where it was and an update where it went.
+     * @return the number of rows the selection matched
+     */
+    int addWeatherRows(SQLiteDatabase db, String selection, String[] selectionArgs,
+                        ContentValues newValues, WeatherStatsRollup stats, WeatherChangeLog log) {
+        Long newLocationId = newValues != null
+                ? newValues.getAsLong(WeatherEntry.COLUMN_LOC_KEY) : null;
+        Long newDate = newValues != null ? newValues.getAsLong(WeatherEntry.COLUMN_DATE) : null;
+
+        Cursor cursor = db.query(true, WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            int rows = cursor.getCount();
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(0);
+                long date = cursor.getLong(1);
+                addWeather(locationId, date);
+                if (stats != null) {
+                    stats.addDay(locationId, date);
+                }
+                if (newValues == null) {
+                    if (log != null) {
+                        log.add(locationId, date, WeatherChangesEntry.OPERATION_DELETE);
+                    }
+                    continue;
+                }
+                long movedLocationId = newLocationId != null ? newLocationId : locationId;
+                long movedDate = newDate != null ? newDate : date;
+                if (movedLocationId != locationId || movedDate != date) {
+                    addWeather(movedLocationId, movedDate);
+                    if (stats != null) {
+                        stats.addDay(movedLocationId, movedDate);
+                    }
+                    if (log != null) {
+                        log.add(locationId, date, WeatherChangesEntry.OPERATION_DELETE);
+                    }
+                }
+                if (log != null) {
+                    log.add(movedLocationId, movedDate, WeatherChangesEntry.OPERATION_UPDATE);
+                }
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the locations whose weather rows were written, as far as they're known.
+     */
+    Set<Long> getWeatherLocationIds() {
+        return mWeatherDates.keySet();
+    }
+
+    void addAll(WeatherChangeSet other) {
+        mUris.addAll(other.mUris);
+        mLocationsRewritten |= other.mLocationsRewritten;
+        for (Map.Entry<Long, Set<Long>> entry : other.mWeatherDates.entrySet()) {
+            for (Long date : entry.getValue()) {
+                addWeather(entry.getKey(), date);
+            }
+        }
+    }
+
+    /**
+     * @return the URIs to notify, each one once.
+     */
+    List<Uri> getUris(SQLiteDatabase db) {
+        Set<Uri> uris = new LinkedHashSet<Uri>(mUris);
+        // Every weather write is logged
+        if (!mWeatherDates.isEmpty() || uris.contains(WeatherEntry.CONTENT_URI)) {
+            uris.add(WeatherChangesEntry.CONTENT_URI);
+        }
+        if (!mWeatherDates.isEmpty() && !uris.contains(WeatherEntry.CONTENT_URI)) {
+            Map<Long, String> locationSettings = getLocationSettings(db, mWeatherDates.keySet());
+            for (Map.Entry<Long, Set<Long>> entry : mWeatherDates.entrySet()) {
+                String locationSetting = locationSettings.get(entry.getKey());
+                Set<Long> dates = entry.getValue();
+                if (locationSetting == null) {
+                    // The location is gone; fall back to telling everyone
+                    uris.add(WeatherEntry.CONTENT_URI);
+                } else if (dates.size() == 1) {
+                    uris.add(WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                            dates.iterator().next()));
+                } else {
+                    uris.add(WeatherEntry.buildWeatherLocation(locationSetting));
+                }
+            }
+        }
+        // Observers of the whole table get every change anyway
+        if (uris.contains(WeatherEntry.CONTENT_URI)) {
+            List<Uri> narrowed = new ArrayList<Uri>();
+            for (Uri uri : uris) {
+                if (uri.equals(WeatherEntry.CONTENT_URI) || !isWeatherUri(uri)) {
+                    narrowed.add(uri);
+                }
+            }
+            return narrowed;
+        }
+        return new ArrayList<Uri>(uris);
+    }
+
+    /**
+     * Records that location rows were updated or deleted, which may have changed the _id that
+     * a location_setting stands for.  Inserts can't, since location_setting is unique.
+     */
+    void addLocationRewrite() {
+        mLocationsRewritten = true;
+    }
+
+    /**
+     * @return true if location rows were updated or deleted.
+     */
+    boolean hasLocationRewrites() {
+        return mLocationsRewritten;
+    }
+
+    private static boolean isWeatherUri(Uri uri) {
+        return isUnder(uri, WeatherContract.PATH_WEATHER);
+    }
+
+    private static boolean isUnder(Uri uri, String path) {
+        List<String> segments = uri.getPathSegments();
+        return !segments.isEmpty() && path.equals(segments.get(0));
+    }
+
+    private static Map<Long, String> getLocationSettings(SQLiteDatabase db, Set<Long> locationIds) {
+        StringBuilder selection = new StringBuilder(LocationEntry._ID + " IN (");
+        String[] selectionArgs = new String[locationIds.size()];
+        int i = 0;
+        for (Long locationId : locationIds) {
+            selection.append(i > 0 ? ",?" : "?");
+            selectionArgs[i++] = Long.toString(locationId);
+        }
+        selection.append(')');
+
+        Map<Long, String> locationSettings = new HashMap<Long, String>();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                selection.toString(), selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locationSettings.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationSettings;
+    }
+}
@@ -43,12 +43,34 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_STAGING = "staging";
+    public static final String PATH_CURRENT = "current";
+
+    // Methods for ContentProvider.call(), which is there from Honeycomb on.
+    // Refreshes the query planner's statistics and hands free pages back to the file system;
+    // the result holds EXTRA_BYTES_RECLAIMED.
+    public static final String METHOD_MAINTAIN_DATABASE = "maintain_database";
+    public static final String EXTRA_BYTES_RECLAIMED = "bytes_reclaimed";
+    // Reads the provider's query cache counters, into EXTRA_CACHE_HITS, EXTRA_CACHE_MISSES and
+    // EXTRA_CACHE_SIZE_BYTES.  They count from when the provider was created.
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+    public static final String EXTRA_CACHE_SIZE_BYTES = "cache_size_bytes";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
+        return normalizeDate(startDate, new Time());
+    }
+
+    // Same as normalizeDate(long), but works in the given Time instead of allocating one, for
+    // callers that normalize many dates in a row.  Whatever the Time held is overwritten.
+    public static long normalizeDate(long startDate, Time time) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
         time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
@@ -81,9 +103,26 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Whether the user keeps track of this location.  Saved locations are fetched along with
+        // the preferred one when a sync asks for all locations.  Stored as 0 or 1.
+        public static final String COLUMN_SAVED = "saved";
+
+        // An insert on this URI adds the location if its location setting is new, and otherwise
+        // updates the stored row with the values given.  Either way the returned URI has the
+        // row's _id.
+        public static final String QUERY_PARAM_UPSERT = "upsert";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildLocationUpsertUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_PARAM_UPSERT, "true").build();
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(QUERY_PARAM_UPSERT));
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,6 +165,24 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Query parameters of weather/[location] for reading it a page at a time.  A page is the
+        // next "limit" days after the "after" date, in ascending order, or the "limit" days
+        // before the "before" date, newest first, for going back through the history.
+        public static final String QUERY_PARAM_LIMIT = "limit";
+        public static final String QUERY_PARAM_AFTER = "after";
+        public static final String QUERY_PARAM_BEFORE = "before";
+        // Deletes through a URI with this set to "true" compact the days rather than forget
+        // them: their weeks and months keep their weather_stats rows.
+        public static final String QUERY_PARAM_COMPACT = "compact";
+
+        public static Uri buildWeatherCompactUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_PARAM_COMPACT, "true").build();
+        }
+
+        public static boolean isCompactUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(QUERY_PARAM_COMPACT));
+        }
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -144,6 +201,35 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        /*
+            The first page of the forecast from startDate on.
+         */
+        public static Uri buildWeatherLocationPage(
+                String locationSetting, long startDate, int limit) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        /*
+            The page following the one that ended with afterDate.
+         */
+        public static Uri buildWeatherLocationAfter(
+                String locationSetting, long afterDate, int limit) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(QUERY_PARAM_AFTER, Long.toString(afterDate))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        /*
+            The page of history before beforeDate, newest first.
+         */
+        public static Uri buildWeatherLocationBefore(
+                String locationSetting, long beforeDate, int limit) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(QUERY_PARAM_BEFORE, Long.toString(beforeDate))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
@@ -164,5 +250,300 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        public static long getAfterDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(QUERY_PARAM_AFTER);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        public static long getBeforeDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(QUERY_PARAM_BEFORE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        // 0 if there's no limit
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(QUERY_PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return 0;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the weather_stats table, a rollup of the
+        weather table by week and by month that the provider keeps up to date as weather is
+        written.  It's read through weather/[location]/stats.
+     */
+    public static final class WeatherStatsEntry implements BaseColumns {
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                        PATH_WEATHER + "/" + PATH_STATS;
+
+        public static final String TABLE_NAME = "weather_stats";
+
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // One of the PERIOD_ values below
+        public static final String COLUMN_PERIOD = "period";
+        // The normalized date of the first day of the period: the Monday of a week, the 1st of
+        // a month
+        public static final String COLUMN_PERIOD_START = "period_start";
+        // How many days of the period there is weather for
+        public static final String COLUMN_DAYS = "days";
+
+        // The lowest of the daily minimums and the highest of the daily maximums
+        public static final String COLUMN_MIN_TEMP = "min_temp";
+        public static final String COLUMN_MAX_TEMP = "max_temp";
+        public static final String COLUMN_MIN_HUMIDITY = "min_humidity";
+        public static final String COLUMN_MAX_HUMIDITY = "max_humidity";
+        public static final String COLUMN_MIN_WIND_SPEED = "min_wind";
+        public static final String COLUMN_MAX_WIND_SPEED = "max_wind";
+
+        // Sums over the days of the period, which the averages are worked out from.  A day's
+        // temperature is the middle of its minimum and maximum.
+        public static final String COLUMN_SUM_TEMP = "sum_temp";
+        public static final String COLUMN_SUM_HUMIDITY = "sum_humidity";
+        public static final String COLUMN_SUM_WIND_SPEED = "sum_wind";
+
+        // Not stored; computed by the provider from the sums
+        public static final String COLUMN_AVG_TEMP = "avg_temp";
+        public static final String COLUMN_AVG_HUMIDITY = "avg_humidity";
+        public static final String COLUMN_AVG_WIND_SPEED = "avg_wind";
+
+        public static final String PERIOD_WEEK = "week";
+        public static final String PERIOD_MONTH = "month";
+
+        // Query parameter choosing the period; weeks if it's left out
+        public static final String QUERY_PARAM_PERIOD = "period";
+
+        public static Uri buildWeatherStatsUri(String locationSetting, String period) {
+            return WeatherEntry.CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(PATH_STATS)
+                    .appendQueryParameter(QUERY_PARAM_PERIOD, period).build();
+        }
+
+        public static String getPeriodFromUri(Uri uri) {
+            String period = uri.getQueryParameter(QUERY_PARAM_PERIOD);
+            if (null != period && period.length() > 0)
+                return period;
+            else
+                return PERIOD_WEEK;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the weather_changes table: one row for
+        every weather row written, in the order they were written.  A consumer remembers the
+        last _id it has seen and asks for changes?since=[that _id] to find out which days to
+        read again.  Only the most recent rows are kept; if the first row returned isn't
+        since + 1, rows were dropped in between and everything has to be read again.
+     */
+    public static final class WeatherChangesEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_CHANGES).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+
+        public static final String TABLE_NAME = "weather_changes";
+
+        // _ID is the sequence number, which only ever goes up
+
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // The normalized date of the day that was written
+        public static final String COLUMN_DATE = "date";
+        // One of the OPERATION_ values below
+        public static final String COLUMN_OPERATION = "operation";
+
+        // Not stored; the location_setting of location_id, or null if it has been deleted
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        public static final String OPERATION_INSERT = "insert";
+        public static final String OPERATION_UPDATE = "update";
+        public static final String OPERATION_DELETE = "delete";
+
+        public static final String QUERY_PARAM_SINCE = "since";
+
+        public static Uri buildChangesSinceUri(long since) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SINCE, Long.toString(since)).build();
+        }
+
+        public static long getSinceFromUri(Uri uri) {
+            String sinceString = uri.getQueryParameter(QUERY_PARAM_SINCE);
+            if (null != sinceString && sinceString.length() > 0)
+                return Long.parseLong(sinceString);
+            else
+                return 0;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the weather_staging table, where a sync
+        puts a location's new forecast before it goes live.  The rows have the columns of
+        WeatherEntry and are written with bulkInsert() on staging/[location_id], which replaces
+        whatever was staged for that location before.  Nothing reads them until they are
+        published with an update() of the same URI, with COLUMN_DATE set to the first day the
+        forecast covers: in one transaction, every day of the location from then on is made to
+        match the staged ones, and only the days that differ are written.  delete() throws the
+        staged rows away instead.
+
+        A publish can also be made in three parts, by updating staging/[location_id]/deleted,
+        then .../updated, then .../inserted in one batch, so that each part returns its own
+        count; the last part clears the staged rows.
+     */
+    public static final class WeatherStagingEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_STAGING).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STAGING;
+
+        public static final String TABLE_NAME = "weather_staging";
+
+        public static Uri buildStagingUri(long locationId) {
+            return ContentUris.withAppendedId(CONTENT_URI, locationId);
+        }
+
+        // The parts of a publish, as the last segment of a publish URI
+        public static final String PUBLISH_DELETED = "deleted";
+        public static final String PUBLISH_UPDATED = "updated";
+        public static final String PUBLISH_INSERTED = "inserted";
+
+        public static Uri buildPublishUri(long locationId, String part) {
+            return buildStagingUri(locationId).buildUpon().appendPath(part).build();
+        }
+
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+
+        public static String getPublishPartFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the current_summary table: for each
+        location, its first forecast day from today on, which is what the widgets, Muzei, the
+        notification and the watch show.  The provider rewrites a location's row in the
+        transaction of every weather write, so current/[location_setting] is a primary key
+        lookup.  A row written before today is worked out again from the weather table when
+        it's read.
+     */
+    public static final class CurrentSummaryEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_CURRENT).build();
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CURRENT;
+
+        public static final String TABLE_NAME = "current_summary";
+
+        // The primary key; there's no _id
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // The normalized date of the day summarized, today unless there's no forecast for it
+        public static final String COLUMN_DATE = "date";
+        // The same as their WeatherEntry columns
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        // The name of the artwork for the weather, e.g. "light_rain", as filled into the art
+        // pack URL format.  Null for a weather id with no artwork.
+        public static final String COLUMN_ART_KEY = "art_key";
+
+        // The art keys, and the weather ids each one is for: ART_WEATHER_IDS[i] holds the
+        // first and last weather id of ART_KEYS[i].  The first range a weather id is in wins.
+        // Based on weather code data found at:
+        // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+        static final String[] ART_KEYS = {
+                "storm", "light_rain", "rain", "snow", "rain", "snow", "fog", "storm", "storm",
+                "clear", "light_clouds", "clouds"
+        };
+        static final int[][] ART_WEATHER_IDS = {
+                {200, 232}, {300, 321}, {500, 504}, {511, 511}, {520, 531}, {600, 622},
+                {701, 761}, {761, 761}, {781, 781}, {800, 800}, {801, 801}, {802, 804}
+        };
+
+        /**
+         * @return the art key for the weather condition id returned by the OpenWeatherMap call,
+         * or null if there's no artwork for it.
+         */
+        public static String getArtKeyForWeatherCondition(int weatherId) {
+            for (int i = 0; i < ART_KEYS.length; i++) {
+                if (weatherId >= ART_WEATHER_IDS[i][0] && weatherId <= ART_WEATHER_IDS[i][1]) {
+                    return ART_KEYS[i];
+                }
+            }
+            return null;
+        }
+
+        public static Uri buildCurrentUri(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync_metrics table */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // Wall clock time the sync started at, in milliseconds since the epoch.  All the phases
+        // of one sync share it.
+        public static final String COLUMN_SYNC_START = "sync_start";
+
+        // The location the phase was for, or null for phases that cover the whole sync
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        // One of the PHASE_ values below
+        public static final String COLUMN_PHASE = "phase";
+
+        // How long the phase took, in microseconds
+        public static final String COLUMN_DURATION = "duration";
+
+        // Bytes read from the network during the phase, 0 if it didn't touch the network
+        public static final String COLUMN_BYTES = "bytes";
+
+        // Rows parsed or written during the phase
+        public static final String COLUMN_ROWS = "rows";
+
+        // Opening the connection to OpenWeatherMap
+        public static final String PHASE_CONNECT = "connect";
+        // From the request being sent to the response headers arriving
+        public static final String PHASE_FIRST_BYTE = "first_byte";
+        // Reading the response body off the network
+        public static final String PHASE_DOWNLOAD = "download";
+        // Turning the response into rows, not counting time spent waiting on the network
+        public static final String PHASE_PARSE = "parse";
+        // Staging the forecasts and publishing the changed rows, in one batch
+        public static final String PHASE_INSERT = "insert";
+        // The fan-out once new data is stored
+        public static final String PHASE_UPDATE_WIDGETS = "update_widgets";
+        public static final String PHASE_UPDATE_MUZEI = "update_muzei";
+        // Includes PHASE_SEND_TO_WEAR when a notification is shown
+        public static final String PHASE_NOTIFY_WEATHER = "notify_weather";
+        public static final String PHASE_SEND_TO_WEAR = "send_to_wear";
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.app.data.WeatherContract.CurrentSummaryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the current_summary table in step with the weather table, see
+ * {@link CurrentSummaryEntry}.
+ *
+ * Each location a write touched gets its row worked out again by {@link #refresh} in the
+ * write's transaction: one seek into the (location_id, date) index for its first day from
+ * today on.  The art key is worked out in the same statement, so nobody reading the summary
+ * has to map the weather id themselves.
+ */
+class WeatherCurrentSummary {
+
+    // CASE WHEN weather_id BETWEEN 200 AND 232 THEN 'storm' WHEN ... END
+    static final String SQL_ART_KEY;
+
+    // The summary columns, as they're worked out from a weather row
+    private static final String SQL_SUMMARY_COLUMNS;
+
+    // The summary column -> its SQL over the weather table, for the fallback query
+    static final Map<String, String> sWeatherProjectionMap = new HashMap<String, String>();
+
+    private static final String SQL_DELETE = "DELETE FROM " + CurrentSummaryEntry.TABLE_NAME +
+            " WHERE " + CurrentSummaryEntry.COLUMN_LOC_KEY + " = ?";
+
+    private static final String SQL_INSERT;
+
+    // Every location's first day from today on, for filling the table from scratch
+    private static final String SQL_INSERT_ALL;
+
+    static {
+        StringBuilder artKey = new StringBuilder("CASE");
+        for (int i = 0; i < CurrentSummaryEntry.ART_KEYS.length; i++) {
+            artKey.append(" WHEN ").append(WeatherEntry.COLUMN_WEATHER_ID)
+                    .append(" BETWEEN ").append(CurrentSummaryEntry.ART_WEATHER_IDS[i][0])
+                    .append(" AND ").append(CurrentSummaryEntry.ART_WEATHER_IDS[i][1])
+                    .append(" THEN '").append(CurrentSummaryEntry.ART_KEYS[i]).append('\'');
+        }
+        SQL_ART_KEY = artKey.append(" END").toString();
+
+        String[][] columns = {
+                {CurrentSummaryEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_LOC_KEY},
+                {CurrentSummaryEntry.COLUMN_DATE, WeatherEntry.COLUMN_DATE},
+                {CurrentSummaryEntry.COLUMN_WEATHER_ID, WeatherEntry.COLUMN_WEATHER_ID},
+                {CurrentSummaryEntry.COLUMN_SHORT_DESC, WeatherEntry.COLUMN_SHORT_DESC},
+                {CurrentSummaryEntry.COLUMN_MIN_TEMP, WeatherEntry.COLUMN_MIN_TEMP},
+                {CurrentSummaryEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MAX_TEMP},
+                {CurrentSummaryEntry.COLUMN_ART_KEY, SQL_ART_KEY}
+        };
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            names.append(i > 0 ? ", " : "").append(columns[i][0]);
+            values.append(i > 0 ? ", " : "").append(columns[i][1]);
+            sWeatherProjectionMap.put(columns[i][0], columns[i][1] + " AS " + columns[i][0]);
+        }
+        SQL_SUMMARY_COLUMNS = values.toString();
+
+        String insertInto = "INSERT INTO " + CurrentSummaryEntry.TABLE_NAME + " (" + names + ")" +
+                " SELECT " + SQL_SUMMARY_COLUMNS + " FROM " + WeatherEntry.TABLE_NAME + " WHERE ";
+        SQL_INSERT = insertInto + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherEntry.COLUMN_DATE +
+                " ASC LIMIT 1";
+        SQL_INSERT_ALL = insertInto + WeatherEntry.COLUMN_DATE + " = (SELECT MIN(" +
+                WeatherEntry.COLUMN_DATE + ") FROM " + WeatherEntry.TABLE_NAME + " AS earliest" +
+                " WHERE earliest." + WeatherEntry.COLUMN_LOC_KEY + " = " + WeatherEntry.TABLE_NAME +
+                "." + WeatherEntry.COLUMN_LOC_KEY + " AND earliest." + WeatherEntry.COLUMN_DATE +
+                " >= ?)";
+    }
+
+    private WeatherCurrentSummary() {
+    }
+
+    /**
+     * @return today's normalized date, the first day a summary may be of
+     */
+    static long getToday() {
+        return WeatherContract.normalizeDate(System.currentTimeMillis());
+    }
+
+    /**
+     * Works out the summaries of these locations again.  A location with no weather from today
+     * on is left without one.  Call inside the transaction of the write, after it.
+     */
+    static void refresh(SQLiteDatabase db, Collection<Long> locationIds) {
+        if (locationIds.isEmpty()) {
+            return;
+        }
+        long today = getToday();
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT);
+        try {
+            for (long locationId : locationIds) {
+                delete.bindLong(1, locationId);
+                delete.execute();
+                insert.bindLong(1, locationId);
+                insert.bindLong(2, today);
+                insert.execute();
+            }
+        } finally {
+            delete.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Works out every location's summary from scratch, e.g. when the table has just been
+     * created.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.delete(CurrentSummaryEntry.TABLE_NAME, null, null);
+        db.execSQL(SQL_INSERT_ALL, new Object[]{getToday()});
+    }
+}
@@ -15,12 +15,21 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.app.data.WeatherContract.CurrentSummaryEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherChangesEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStagingEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStatsEntry;
 
 /**
  * Manages a local database for weather data.
@@ -28,24 +37,99 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 9;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Serves the forecast list's "location_id = ? AND date >= ?" lookups.  It starts with
+    // (location_id, date) and carries the rest of the weather columns of ForecastFragment's
+    // projection, so the list is read from the index alone.  The UNIQUE (date, location_id)
+    // index can't be used for that predicate since its first column is the range one.
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    // PRAGMA auto_vacuum value for incremental vacuum
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Whether readers may run alongside a writer, see enableWriteAheadLogging()
+    private final boolean mWriteAheadLogging;
+    // Set by onCreate(), until onOpen() has switched the new database to incremental vacuum
+    private boolean mCreated;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true);
+    }
+
+    // Lets tests open a scratch database, with or without write-ahead logging
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging) {
+        super(context, name, null, DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging;
+        if (writeAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging();
+        }
+    }
+
+    /*
+        The widgets, Muzei, the forecast loader and the sync adapter all share this database.
+        With the default rollback journal every reader waits for the sync's transaction to
+        commit.  With write-ahead logging readers see the last committed data while the
+        transaction runs, and SQLiteDatabase keeps a pool of connections so that they don't have
+        to queue behind each other either.  The size of that pool is set by the platform.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (mCreated && !db.isReadOnly()) {
+            mCreated = false;
+            useIncrementalVacuum(db);
+        }
+        // Before Jelly Bean, WAL can only be turned on for a database that is already open
+        if (mWriteAheadLogging
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !db.isReadOnly()) {
+            enableWriteAheadLogging(db);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    /*
+        SQLiteDatabase writes android_metadata before onCreate() runs, and auto_vacuum only
+        takes effect for a file with no tables yet.  So onCreate() asks for it, and the VACUUM
+        that applies it runs here, outside onCreate()'s transaction, while the database is
+        still empty and the VACUUM costs next to nothing.
+     */
+    private static void useIncrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        // Freed pages are handed back in steps by maintain(), never by a full VACUUM
+        sqLiteDatabase.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        mCreated = true;
+
         // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
+        // location setting, the city name, the latitude and longitude, and whether the user
+        // has saved it
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_SAVED + " INTEGER NOT NULL DEFAULT 0 " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -81,18 +165,280 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        createSyncMetricsTable(sqLiteDatabase);
+        createWeatherLocationDateIndex(sqLiteDatabase);
+        createWeatherStatsTable(sqLiteDatabase);
+        createWeatherChangesTable(sqLiteDatabase);
+        createWeatherStagingTable(sqLiteDatabase);
+        createCurrentSummaryTable(sqLiteDatabase);
+    }
+
+    private static void createSyncMetricsTable(SQLiteDatabase sqLiteDatabase) {
+        // How long each phase of each sync took, so that sync latency can be tracked over time
+        final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncMetricsEntry.COLUMN_SYNC_START + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_LOCATION_SETTING + " TEXT, " +
+                SyncMetricsEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncMetricsEntry.COLUMN_ROWS + " INTEGER NOT NULL DEFAULT 0 " +
+                " );";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+    }
+
+    private static void createWeatherLocationDateIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_WEATHER_LOCATION_DATE +
+                " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ");");
+    }
+
+    private static void createWeatherStatsTable(SQLiteDatabase sqLiteDatabase) {
+        // Weekly and monthly rollups of the weather table, kept up to date by
+        // WeatherStatsRollup.  The UNIQUE constraint is also the index stats queries are read
+        // through.
+        final String SQL_CREATE_WEATHER_STATS_TABLE = "CREATE TABLE " + WeatherStatsEntry.TABLE_NAME + " (" +
+                WeatherStatsEntry._ID + " INTEGER PRIMARY KEY," +
+                WeatherStatsEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherStatsEntry.COLUMN_PERIOD + " TEXT NOT NULL, " +
+                WeatherStatsEntry.COLUMN_PERIOD_START + " INTEGER NOT NULL, " +
+                WeatherStatsEntry.COLUMN_DAYS + " INTEGER NOT NULL, " +
+
+                WeatherStatsEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_SUM_TEMP + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_MIN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_MAX_HUMIDITY + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_SUM_HUMIDITY + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_MIN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_MAX_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherStatsEntry.COLUMN_SUM_WIND_SPEED + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + WeatherStatsEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + WeatherStatsEntry.COLUMN_LOC_KEY + ", " +
+                WeatherStatsEntry.COLUMN_PERIOD + ", " +
+                WeatherStatsEntry.COLUMN_PERIOD_START + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_STATS_TABLE);
+    }
+
+    private static void createWeatherChangesTable(SQLiteDatabase sqLiteDatabase) {
+        // Every weather row written, in order.  AUTOINCREMENT so that a sequence number is
+        // never handed out twice, even once the rows before it have been trimmed.
+        final String SQL_CREATE_WEATHER_CHANGES_TABLE = "CREATE TABLE " + WeatherChangesEntry.TABLE_NAME + " (" +
+                WeatherChangesEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeatherChangesEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherChangesEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherChangesEntry.COLUMN_OPERATION + " TEXT NOT NULL " +
+                " );";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_CHANGES_TABLE);
+    }
+
+    private static void createWeatherStagingTable(SQLiteDatabase sqLiteDatabase) {
+        // Forecasts on their way into the weather table, see WeatherStagingEntry.  Same columns,
+        // but nothing reads it by date, so it gets no index beyond the UNIQUE one.
+        final String SQL_CREATE_WEATHER_STAGING_TABLE = "CREATE TABLE " + WeatherStagingEntry.TABLE_NAME + " (" +
+                WeatherEntry._ID + " INTEGER PRIMARY KEY," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_STAGING_TABLE);
     }
 
+    private static void createCurrentSummaryTable(SQLiteDatabase sqLiteDatabase) {
+        // Each location's current conditions, kept up to date by WeatherCurrentSummary.  One
+        // row per location, looked up by its primary key.
+        final String SQL_CREATE_CURRENT_SUMMARY_TABLE = "CREATE TABLE " + CurrentSummaryEntry.TABLE_NAME + " (" +
+                CurrentSummaryEntry.COLUMN_LOC_KEY + " INTEGER PRIMARY KEY," +
+                CurrentSummaryEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                CurrentSummaryEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                CurrentSummaryEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                CurrentSummaryEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                CurrentSummaryEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                CurrentSummaryEntry.COLUMN_ART_KEY + " TEXT, " +
+
+                " FOREIGN KEY (" + CurrentSummaryEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "));";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_CURRENT_SUMMARY_TABLE);
+    }
+
+    /*
+        Run by the retention job once old weather has been purged.  ANALYZE refreshes the
+        statistics the query planner picks indexes by, which drift as rows come and go.  The
+        pages the purge freed are handed back with incremental vacuum, which a database created
+        since that was turned on has.  An older one is left as it is: only a full VACUUM could
+        switch it over, and that rewrites the whole file while holding every writer off.  Its
+        freed pages are reused by the next syncs instead.  Neither ANALYZE nor incremental
+        vacuum can run inside a transaction.
+
+        Returns the number of bytes the database shrank by.
+     */
+    long maintain(SQLiteDatabase sqLiteDatabase) {
+        long before = getSizeBytes(sqLiteDatabase);
+        sqLiteDatabase.execSQL("ANALYZE");
+        if (DatabaseUtils.longForQuery(sqLiteDatabase, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL) {
+            // incremental_vacuum frees one page per step; execSQL() would only take the first
+            Cursor cursor = sqLiteDatabase.rawQuery("PRAGMA incremental_vacuum", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        }
+        return before - getSizeBytes(sqLiteDatabase);
+    }
+
+    private static long getSizeBytes(SQLiteDatabase sqLiteDatabase) {
+        return DatabaseUtils.longForQuery(sqLiteDatabase, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(sqLiteDatabase, "PRAGMA page_size", null);
+    }
+
+    /**
+     * One step of the schema history: turns a database of version fromVersion into one of
+     * version fromVersion + 1, keeping its data.
+     */
+    abstract static class Migration {
+        final int fromVersion;
+
+        Migration(int fromVersion) {
+            this.fromVersion = fromVersion;
+        }
+
+        abstract void migrate(SQLiteDatabase sqLiteDatabase);
+    }
+
+    // The oldest version the migrations below start from.  Anything older is recreated.
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
+
+    /*
+        Every schema change adds a step here, in order, and bumps DATABASE_VERSION.  A step has
+        to keep producing the schema of its own version: if a later version changes something
+        an earlier step creates, give the earlier step its own copy of the old SQL rather than
+        editing it.
+     */
+    static final Migration[] MIGRATIONS = {
+            // 2 -> 3: locations can be saved, to be synced alongside the preferred one
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                            " ADD COLUMN " + LocationEntry.COLUMN_SAVED +
+                            " INTEGER NOT NULL DEFAULT 0");
+                }
+            },
+            // 3 -> 4: per-phase sync timings
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createSyncMetricsTable(sqLiteDatabase);
+                }
+            },
+            // 4 -> 5: (location_id, date) covering index for the forecast list
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createWeatherLocationDateIndex(sqLiteDatabase);
+                }
+            },
+            // 5 -> 6: weekly and monthly rollups, filled from the weather already there
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createWeatherStatsTable(sqLiteDatabase);
+                    WeatherStatsRollup.rebuild(sqLiteDatabase);
+                }
+            },
+            // 6 -> 7: change log for incremental readers
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createWeatherChangesTable(sqLiteDatabase);
+                }
+            },
+            // 7 -> 8: staging table, so a sync can swap a forecast in at once
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createWeatherStagingTable(sqLiteDatabase);
+                }
+            },
+            // 8 -> 9: current conditions per location, filled from the weather already there
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createCurrentSummaryTable(sqLiteDatabase);
+                    WeatherCurrentSummary.rebuild(sqLiteDatabase);
+                }
+            },
+    };
+
+    /*
+        Brings the database up to date one step at a time, so the forecast that is already on
+        the device survives and can be shown straight away instead of after a full sync.
+        SQLiteOpenHelper runs this in a transaction: if any step fails, nothing is changed.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (oldVersion < OLDEST_MIGRATABLE_VERSION) {
+            // Too old to migrate.  This database is only a cache for online data, so start over.
+            recreate(sqLiteDatabase);
+            return;
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            getMigration(version).migrate(sqLiteDatabase);
+        }
+    }
+
+    static Migration getMigration(int fromVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.fromVersion == fromVersion) {
+                return migration;
+            }
+        }
+        throw new IllegalStateException("No migration from database version " + fromVersion);
+    }
+
+    /*
+        A newer version of the app has been replaced by this one.  We can't know what it
+        changed, so drop everything and start over.
+     */
+    @Override
+    public void onDowngrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        recreate(sqLiteDatabase);
+    }
+
+    private void recreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherStatsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherChangesEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherStagingEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CurrentSummaryEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
@@ -17,12 +17,27 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,12 +45,38 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // The changes made by the batch being applied on this thread, or null outside of a batch
+    private final ThreadLocal<WeatherChangeSet> mBatchChanges = new ThreadLocal<WeatherChangeSet>();
+
+    // A forecast is a few kilobytes; this holds plenty of them
+    static final long QUERY_CACHE_MAX_BYTES = 256 * 1024;
+    static final int QUERY_CACHE_MAX_ROWS = 500;
+    private final QueryCache mQueryCache =
+            new QueryCache(QUERY_CACHE_MAX_BYTES, QUERY_CACHE_MAX_ROWS);
+
+    // location_setting -> location._id, so that most weather queries don't need the join and
+    // the sync adapter's location upserts don't need a lookup.  There's one provider per
+    // process, so this is shared by everything in it.  Guarded by itself; cleared whenever
+    // location rows are updated or deleted.
+    private final Map<String, Long> mLocationIds = new HashMap<String, Long>();
+    private long mLocationGeneration;
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_STATS = 103;
     static final int LOCATION = 300;
+    static final int SYNC_METRICS = 400;
+    static final int WEATHER_CHANGES = 500;
+    static final int WEATHER_STAGING = 600;
+    static final int WEATHER_STAGING_PUBLISH = 601;
+    static final int CURRENT_SUMMARY = 700;
+
+    // The sync_metrics table only keeps this many of the most recent rows
+    static final int SYNC_METRICS_MAX_ROWS = 5000;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // Package visible so that TestDb can check the query plan
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -56,34 +97,376 @@ public class WeatherProvider extends ContentProvider {
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
+    //weather.location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    // Date conditions, to follow one of the two above
+
+    //AND date >= ?
+    private static final String sStartDateSelection =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //AND date > ?
+    private static final String sAfterDateSelection =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ";
+
+    //AND date < ?
+    private static final String sBeforeDateSelection =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " < ? ";
+
+    //AND date = ?
+    private static final String sDaySelection =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+    static final String sLocationSettingWithStartDateSelection =
+            sLocationSettingSelection + sStartDateSelection;
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            sLocationIdSelection + sStartDateSelection;
+
+    //weather_stats.location_id = (SELECT _id FROM location WHERE location_setting = ?)
+    //  AND period = ?
+    private static final String sStatsSelection =
+            WeatherContract.WeatherStatsEntry.COLUMN_LOC_KEY + " = (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) AND " +
+                    WeatherContract.WeatherStatsEntry.COLUMN_PERIOD + " = ? ";
+
+    //AND period_start >= ?
+    private static final String sStatsStartDateSelection =
+            "AND " + WeatherContract.WeatherStatsEntry.COLUMN_PERIOD_START + " >= ? ";
+
+    //weather_changes._id > ?
+    private static final String sChangesSinceSelection =
+            WeatherContract.WeatherChangesEntry.TABLE_NAME + "." +
+                    WeatherContract.WeatherChangesEntry._ID + " > ? ";
+
+    private static final SQLiteQueryBuilder sWeatherChangesQueryBuilder;
+
+    static {
+        String changes = WeatherContract.WeatherChangesEntry.TABLE_NAME;
+        String location = WeatherContract.LocationEntry.TABLE_NAME;
+        Map<String, String> columns = new HashMap<String, String>();
+        for (String column : new String[]{
+                WeatherContract.WeatherChangesEntry._ID,
+                WeatherContract.WeatherChangesEntry.COLUMN_LOC_KEY,
+                WeatherContract.WeatherChangesEntry.COLUMN_DATE,
+                WeatherContract.WeatherChangesEntry.COLUMN_OPERATION}) {
+            columns.put(column, changes + "." + column + " AS " + column);
+        }
+        columns.put(WeatherContract.WeatherChangesEntry.COLUMN_LOCATION_SETTING,
+                location + "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " AS " +
+                        WeatherContract.WeatherChangesEntry.COLUMN_LOCATION_SETTING);
+
+        //weather_changes LEFT JOIN location ON weather_changes.location_id = location._id,
+        //so that changes to deleted locations still show up
+        sWeatherChangesQueryBuilder = new SQLiteQueryBuilder();
+        sWeatherChangesQueryBuilder.setTables(changes + " LEFT JOIN " + location +
+                " ON " + changes + "." + WeatherContract.WeatherChangesEntry.COLUMN_LOC_KEY +
+                " = " + location + "." + WeatherContract.LocationEntry._ID);
+        sWeatherChangesQueryBuilder.setProjectionMap(columns);
+    }
+
+    //weather_stats.location_id NOT IN (SELECT _id FROM location)
+    private static final String sOrphanedStatsSelection =
+            WeatherContract.WeatherStatsEntry.COLUMN_LOC_KEY + " NOT IN (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + ")";
+
+    //current_summary.location_id NOT IN (SELECT _id FROM location)
+    private static final String sOrphanedSummarySelection =
+            WeatherContract.CurrentSummaryEntry.COLUMN_LOC_KEY + " NOT IN (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + ")";
+
+    //location_id = (SELECT _id FROM location WHERE location_setting = ?)
+    private static final String sLocationSettingSubquerySelection =
+            WeatherContract.CurrentSummaryEntry.COLUMN_LOC_KEY + " = (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) ";
+
+    // The current summary worked out from the weather table, for when the stored one is stale
+    private static final SQLiteQueryBuilder sCurrentFromWeatherQueryBuilder;
+
+    static {
+        sCurrentFromWeatherQueryBuilder = new SQLiteQueryBuilder();
+        sCurrentFromWeatherQueryBuilder.setTables(WeatherContract.WeatherEntry.TABLE_NAME);
+        sCurrentFromWeatherQueryBuilder.setProjectionMap(
+                WeatherCurrentSummary.sWeatherProjectionMap);
+    }
+
+    private static final SQLiteQueryBuilder sWeatherStatsQueryBuilder;
+
+    static {
+        // The stored columns as they are, plus the averages
+        Map<String, String> columns = new HashMap<String, String>();
+        for (String column : new String[]{
+                WeatherContract.WeatherStatsEntry._ID,
+                WeatherContract.WeatherStatsEntry.COLUMN_LOC_KEY,
+                WeatherContract.WeatherStatsEntry.COLUMN_PERIOD,
+                WeatherContract.WeatherStatsEntry.COLUMN_PERIOD_START,
+                WeatherContract.WeatherStatsEntry.COLUMN_DAYS,
+                WeatherContract.WeatherStatsEntry.COLUMN_MIN_TEMP,
+                WeatherContract.WeatherStatsEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherStatsEntry.COLUMN_SUM_TEMP,
+                WeatherContract.WeatherStatsEntry.COLUMN_MIN_HUMIDITY,
+                WeatherContract.WeatherStatsEntry.COLUMN_MAX_HUMIDITY,
+                WeatherContract.WeatherStatsEntry.COLUMN_SUM_HUMIDITY,
+                WeatherContract.WeatherStatsEntry.COLUMN_MIN_WIND_SPEED,
+                WeatherContract.WeatherStatsEntry.COLUMN_MAX_WIND_SPEED,
+                WeatherContract.WeatherStatsEntry.COLUMN_SUM_WIND_SPEED}) {
+            columns.put(column, column);
+        }
+        putAverage(columns, WeatherContract.WeatherStatsEntry.COLUMN_AVG_TEMP,
+                WeatherContract.WeatherStatsEntry.COLUMN_SUM_TEMP);
+        putAverage(columns, WeatherContract.WeatherStatsEntry.COLUMN_AVG_HUMIDITY,
+                WeatherContract.WeatherStatsEntry.COLUMN_SUM_HUMIDITY);
+        putAverage(columns, WeatherContract.WeatherStatsEntry.COLUMN_AVG_WIND_SPEED,
+                WeatherContract.WeatherStatsEntry.COLUMN_SUM_WIND_SPEED);
+
+        sWeatherStatsQueryBuilder = new SQLiteQueryBuilder();
+        sWeatherStatsQueryBuilder.setTables(WeatherContract.WeatherStatsEntry.TABLE_NAME);
+        sWeatherStatsQueryBuilder.setProjectionMap(columns);
+    }
+
+    private static void putAverage(Map<String, String> columns, String column, String sumColumn) {
+        columns.put(column, sumColumn + " / " + WeatherContract.WeatherStatsEntry.COLUMN_DAYS +
+                " AS " + column);
+    }
+
+    // What the weather table can answer without the join, bare or qualified
+    private static final Set<String> sWeatherColumns = new HashSet<String>();
+
+    // Anything in a sort order that would need the location table
+    private static final String[] sLocationOnlyColumns = {
+            WeatherContract.LocationEntry.TABLE_NAME + ".",
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_SAVED
+    };
+
+    static {
+        for (String column : Arrays.asList(
+                WeatherContract.WeatherEntry._ID,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                WeatherContract.WeatherEntry.COLUMN_DATE,
+                WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherContract.WeatherEntry.COLUMN_DEGREES)) {
+            sWeatherColumns.add(column);
+            sWeatherColumns.add(WeatherContract.WeatherEntry.TABLE_NAME + "." + column);
+        }
+    }
+
+    private static boolean isLocationSettingColumn(String column) {
+        return WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING.equals(column) ||
+                (WeatherContract.LocationEntry.TABLE_NAME + "." +
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING).equals(column);
+    }
+
+    /*
+        True if a weather/[location] query with this projection and sort order can be answered
+        by the weather table alone.  location_setting is allowed, since the caller passed it in
+        the URI; see toWeatherProjection().  A null projection asks for the location columns too.
+     */
+    static boolean canSkipLocationJoin(String[] projection, String sortOrder) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!sWeatherColumns.contains(column) && !isLocationSettingColumn(column)) {
+                return false;
+            }
+        }
+        if (sortOrder != null) {
+            for (String locationColumn : sLocationOnlyColumns) {
+                if (sortOrder.contains(locationColumn)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+        Replaces location_setting in the projection with the value itself, so that the weather
+        table can stand in for the join.
+     */
+    private static String[] toWeatherProjection(String[] projection, String locationSetting) {
+        String[] weatherProjection = projection.clone();
+        for (int i = 0; i < weatherProjection.length; i++) {
+            if (isLocationSettingColumn(weatherProjection[i])) {
+                weatherProjection[i] = DatabaseUtils.sqlEscapeString(locationSetting) + " AS " +
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING;
+            }
+        }
+        return weatherProjection;
+    }
+
+    /*
+        @return the _id of the location, or null if there's no such location yet.
+     */
+    private Long getLocationId(SQLiteDatabase db, String locationSetting) {
+        long generation;
+        synchronized (mLocationIds) {
+            Long locationId = mLocationIds.get(locationSetting);
+            if (locationId != null) {
+                return locationId;
+            }
+            generation = mLocationGeneration;
+        }
+        Long locationId = null;
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                sLocationSettingSelection, new String[]{locationSetting}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                locationId = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        // Not from inside a batch, which might still be rolled back
+        if (locationId != null && mBatchChanges.get() == null) {
+            synchronized (mLocationIds) {
+                if (generation == mLocationGeneration) {
+                    mLocationIds.put(locationSetting, locationId);
+                }
+            }
+        }
+        return locationId;
+    }
+
+    private void onLocationsChanged() {
+        synchronized (mLocationIds) {
+            mLocationGeneration++;
+            mLocationIds.clear();
+        }
+    }
+
+    /*
+        Runs a weather/[location] query, on the weather table alone if the projection allows it,
+        which spares a join per row, or through the join otherwise.
+
+        @param dateSelection the date conditions, to follow the location one
+        @param dateArgs      their arguments
+        @param limit         null for no limit
+     */
+    private Cursor queryByLocationSetting(String locationSetting, String[] projection,
+                                          String dateSelection, String[] dateArgs,
+                                          String sortOrder, String limit) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Long locationId = canSkipLocationJoin(projection, sortOrder)
+                ? getLocationId(db, locationSetting) : null;
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+        // An unknown location goes through the join too, and comes back empty
+        String[] selectionArgs = new String[dateArgs.length + 1];
+        selectionArgs[0] = locationId != null ? Long.toString(locationId) : locationSetting;
+        System.arraycopy(dateArgs, 0, selectionArgs, 1, dateArgs.length);
 
+        if (locationId != null) {
+            return db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    toWeatherProjection(projection, locationSetting),
+                    sLocationIdSelection + dateSelection,
+                    selectionArgs,
+                    null,
+                    null,
+                    sortOrder,
+                    limit
+            );
+        }
+        return sWeatherByLocationSettingQueryBuilder.query(db,
+                projection,
+                sLocationSettingSelection + dateSelection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder,
+                limit
+        );
+    }
+
+    /*
+        Pages of weather/[location] are keyset pagination on the date: a page starts right after
+        the last date of the one before it, so that every page is a seek into the
+        (location_id, date) index followed by a short scan, however far into the history it is.
+     */
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        long beforeDate = WeatherContract.WeatherEntry.getBeforeDateFromUri(uri);
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
 
-        String[] selectionArgs;
-        String selection;
+        StringBuilder dateSelection = new StringBuilder();
+        ArrayList<String> dateArgs = new ArrayList<String>();
+        if (startDate != 0) {
+            dateSelection.append(sStartDateSelection);
+            dateArgs.add(Long.toString(startDate));
+        }
+        if (afterDate != 0) {
+            dateSelection.append(sAfterDateSelection);
+            dateArgs.add(Long.toString(afterDate));
+        }
+        if (beforeDate != 0) {
+            dateSelection.append(sBeforeDateSelection);
+            dateArgs.add(Long.toString(beforeDate));
+        }
+        if (limit > 0 || afterDate != 0 || beforeDate != 0) {
+            // A page only makes sense in date order
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE +
+                    (beforeDate != 0 ? " DESC" : " ASC");
+        }
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+        return queryByLocationSetting(locationSetting, projection, dateSelection.toString(),
+                dateArgs.toArray(new String[dateArgs.size()]), sortOrder,
+                limit > 0 ? Integer.toString(limit) : null);
+    }
+
+    private Cursor getWeatherByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+
+        return queryByLocationSetting(locationSetting, projection, sDaySelection,
+                new String[]{Long.toString(date)}, sortOrder, null);
+    }
+
+    /*
+        Stats come straight from the weather_stats rollup, one row per week or month, so how long
+        this takes doesn't depend on how much weather there is.  The averages are worked out
+        here from the stored sums.
+     */
+    private Cursor getWeatherStats(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        String period = WeatherContract.WeatherStatsEntry.getPeriodFromUri(uri);
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+
+        String selection = sStatsSelection;
+        String[] selectionArgs;
+        if (startDate != 0) {
+            selection += sStatsStartDateSelection;
+            selectionArgs = new String[]{locationSetting, period, Long.toString(startDate)};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selectionArgs = new String[]{locationSetting, period};
+        }
+        if (sortOrder == null) {
+            sortOrder = WeatherContract.WeatherStatsEntry.COLUMN_PERIOD_START + " ASC";
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return sWeatherStatsQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
                 selection,
                 selectionArgs,
@@ -93,15 +476,69 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+    /*
+        The current conditions of a location, read from the current_summary row the last write
+        left, which is a primary key lookup.  A row from before today, e.g. the first read after
+        midnight, is worked out again from the weather table, the same way the write would.
+     */
+    private Cursor getCurrentSummary(Uri uri, String[] projection) {
+        String locationSetting = WeatherContract.CurrentSummaryEntry.getLocationSettingFromUri(uri);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Long locationId = getLocationId(db, locationSetting);
+
+        // An unknown location is looked up again, and comes back empty
+        String selection = (locationId != null ? sLocationIdSelection
+                : sLocationSettingSubquerySelection) + sStartDateSelection;
+        String[] selectionArgs = {
+                locationId != null ? Long.toString(locationId) : locationSetting,
+                Long.toString(WeatherCurrentSummary.getToday())
+        };
+
+        Cursor cursor = db.query(WeatherContract.CurrentSummaryEntry.TABLE_NAME,
+                projection, selection, selectionArgs, null, null, null);
+        if (cursor.getCount() > 0) {
+            return cursor;
+        }
+        cursor.close();
+        return sCurrentFromWeatherQueryBuilder.query(db,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                "1"
+        );
+    }
+
+    /*
+        The change log after the sequence number in the URI, oldest first.  The selection, if
+        any, narrows it down further, e.g. to one location.
+     */
+    private Cursor getWeatherChanges(Uri uri, String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder) {
+        String since = Long.toString(WeatherContract.WeatherChangesEntry.getSinceFromUri(uri));
+        String[] args;
+        if (selection != null) {
+            selection = sChangesSinceSelection + "AND (" + selection + ")";
+            args = new String[1 + (selectionArgs != null ? selectionArgs.length : 0)];
+            args[0] = since;
+            if (selectionArgs != null) {
+                System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+            }
+        } else {
+            selection = sChangesSinceSelection;
+            args = new String[]{since};
+        }
+        if (sortOrder == null) {
+            sortOrder = WeatherContract.WeatherChangesEntry.TABLE_NAME + "." +
+                    WeatherContract.WeatherChangesEntry._ID + " ASC";
+        }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return sWeatherChangesQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+                selection,
+                args,
                 null,
                 null,
                 sortOrder
@@ -128,8 +565,15 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" + WeatherContract.PATH_STATS,
+                WEATHER_STATS);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
+        matcher.addURI(authority, WeatherContract.PATH_CHANGES, WEATHER_CHANGES);
+        matcher.addURI(authority, WeatherContract.PATH_STAGING + "/#", WEATHER_STAGING);
+        matcher.addURI(authority, WeatherContract.PATH_STAGING + "/#/*", WEATHER_STAGING_PUBLISH);
+        matcher.addURI(authority, WeatherContract.PATH_CURRENT + "/*", CURRENT_SUMMARY);
         return matcher;
     }
 
@@ -160,28 +604,93 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_STATS:
+                return WeatherContract.WeatherStatsEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
+            case WEATHER_CHANGES:
+                return WeatherContract.WeatherChangesEntry.CONTENT_TYPE;
+            case WEATHER_STAGING:
+            case WEATHER_STAGING_PUBLISH:
+                return WeatherContract.WeatherStagingEntry.CONTENT_TYPE;
+            case CURRENT_SUMMARY:
+                return WeatherContract.CurrentSummaryEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
     }
 
+    /*
+        The same forecast is asked for by the loader, both widgets, Muzei and the notification
+        right after every sync, so results are served from mQueryCache until the next write.
+        sync_metrics is only read for diagnostics and isn't worth the memory.  What the current
+        summary holds depends on the day it's read as well, so it isn't cached either; it's a
+        primary key lookup anyway.
+     */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        final int match = sUriMatcher.match(uri);
+        // Reads from inside a batch can see its writes before they're committed
+        final boolean cacheable = match != SYNC_METRICS && match != CURRENT_SUMMARY
+                && mBatchChanges.get() == null;
+        Cursor retCursor = null;
+        String cacheKey = null;
+        long writeGeneration = 0;
+        if (cacheable) {
+            cacheKey = QueryCache.buildKey(uri, projection, selection, selectionArgs, sortOrder);
+            retCursor = mQueryCache.get(cacheKey);
+            writeGeneration = mQueryCache.getWriteGeneration();
+        }
+        if (retCursor == null) {
+            retCursor = queryDatabase(match, uri, projection, selection, selectionArgs, sortOrder);
+            if (cacheable) {
+                retCursor = mQueryCache.put(cacheKey, writeGeneration, retCursor);
+            }
+        }
+        // Stats and the current summary change with the days of their location, and days are
+        // notified on their own weather/[location]/[date], which is below weather/[location]
+        // but not below either of them
+        Uri notificationUri;
+        if (match == WEATHER_STATS) {
+            notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                    WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+        } else if (match == CURRENT_SUMMARY) {
+            notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                    WeatherContract.CurrentSummaryEntry.getLocationSettingFromUri(uri));
+        } else {
+            notificationUri = uri;
+        }
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        return retCursor;
+    }
+
+    private Cursor queryDatabase(int match, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
                 retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
                 break;
             }
+            // "weather/*/stats"
+            case WEATHER_STATS: {
+                retCursor = getWeatherStats(uri, projection, sortOrder);
+                break;
+            }
+            // "current/*"
+            case CURRENT_SUMMARY: {
+                retCursor = getCurrentSummary(uri, projection);
+                break;
+            }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
                 retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
@@ -213,14 +722,61 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "changes"
+            case WEATHER_CHANGES: {
+                retCursor = getWeatherChanges(uri, projection, selection, selectionArgs,
+                        sortOrder);
+                break;
+            }
+            // "sync_metrics"
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
 
+    /*
+        Database upkeep for the retention job, see WeatherRetentionTaskService, and the query
+        cache's counters.  Nothing is written, so the query cache and observers are left alone.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_MAINTAIN_DATABASE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.EXTRA_BYTES_RECLAIMED,
+                    mOpenHelper.maintain(mOpenHelper.getWritableDatabase()));
+            return result;
+        }
+        if (WeatherContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.EXTRA_CACHE_HITS, mQueryCache.getHitCount());
+            result.putLong(WeatherContract.EXTRA_CACHE_MISSES, mQueryCache.getMissCount());
+            result.putLong(WeatherContract.EXTRA_CACHE_SIZE_BYTES, mQueryCache.getSizeBytes());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // For tests that write to the database behind the provider's back
+    void clearCaches() {
+        mQueryCache.clear();
+        onLocationsChanged();
+    }
+
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
@@ -228,12 +784,34 @@ public class WeatherProvider extends ContentProvider {
     public Uri insert(Uri uri, ContentValues values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final WeatherChangeSet changes = new WeatherChangeSet();
         Uri returnUri;
 
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id;
+                db.beginTransaction();
+                try {
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                    if ( _id > 0 ) {
+                        long locationId =
+                                values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                        long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                        changes.addWeather(locationId, date);
+                        WeatherStatsRollup stats = new WeatherStatsRollup();
+                        stats.addDay(locationId, date);
+                        stats.apply(db);
+                        WeatherChangeLog log = new WeatherChangeLog();
+                        log.add(locationId, date,
+                                WeatherContract.WeatherChangesEntry.OPERATION_INSERT);
+                        log.apply(db);
+                        WeatherCurrentSummary.refresh(db, changes.getWeatherLocationIds());
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
@@ -241,42 +819,171 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
             case LOCATION: {
+                if (WeatherContract.LocationEntry.isUpsertUri(uri)) {
+                    return upsertLocation(db, uri, values);
+                }
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                changes.add(uri);
+                break;
+            }
+            case SYNC_METRICS: {
+                long _id = db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                trimSyncMetrics(db);
+                changes.add(uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChanges(changes);
         return returnUri;
     }
 
+    /*
+        Adds the location if its location_setting is new, and otherwise brings the stored row
+        up to date with the values given.  The sync adapter does this for every location it
+        fetches, so the _id nearly always comes from mLocationIds, and the only statement run is
+        an UPDATE by _id that matches nothing.  Nothing is notified unless a row was written.
+     */
+    private Uri upsertLocation(SQLiteDatabase db, Uri uri, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("The location setting is needed to upsert " + uri);
+        }
+        final WeatherChangeSet changes = new WeatherChangeSet();
+        long locationId;
+        db.beginTransaction();
+        try {
+            Long existingId = getLocationId(db, locationSetting);
+            if (existingId == null) {
+                locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                if (locationId <= 0)
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                changes.add(WeatherContract.LocationEntry.CONTENT_URI);
+            } else {
+                locationId = existingId;
+                if (updateLocationIfChanged(db, locationId, values) > 0) {
+                    // Same location_setting, same _id: the cached ids still hold
+                    changes.add(WeatherContract.LocationEntry.CONTENT_URI);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (!changes.isEmpty()) {
+            notifyChanges(changes);
+        }
+        return WeatherContract.LocationEntry.buildLocationUri(locationId);
+    }
+
+    /*
+        Writes the values to the location row only where they differ from what is stored.
+
+        @return the number of rows updated, 0 or 1
+     */
+    private static int updateLocationIfChanged(SQLiteDatabase db, long locationId,
+                                               ContentValues values) {
+        //_id = ? AND (city_name IS NOT ? OR coord_lat IS NOT ? OR ...)
+        StringBuilder selection = new StringBuilder(WeatherContract.LocationEntry._ID + " = ?");
+        List<String> selectionArgs = new ArrayList<String>();
+        selectionArgs.add(Long.toString(locationId));
+        int compared = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            if (value.getKey().equals(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                continue;
+            }
+            selection.append(compared++ == 0 ? " AND (" : " OR ").append(value.getKey());
+            if (value.getValue() == null) {
+                selection.append(" IS NOT NULL");
+            } else {
+                // Bound as text; the column's affinity turns it back into a number
+                selection.append(" IS NOT ?");
+                selectionArgs.add(value.getValue().toString());
+            }
+        }
+        if (compared == 0) {
+            // Nothing but the location setting, which is already the same
+            return 0;
+        }
+        selection.append(')');
+        return db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]));
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final WeatherChangeSet changes = new WeatherChangeSet();
         int rowsDeleted;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+            case WEATHER: {
+                // Compacted days live on in the stats of their weeks and months, which are left
+                // as they are
+                WeatherStatsRollup stats = WeatherContract.WeatherEntry.isCompactUri(uri)
+                        ? null : new WeatherStatsRollup();
+                WeatherChangeLog log = new WeatherChangeLog();
+                db.beginTransaction();
+                try {
+                    changes.addWeatherRows(db, selection, selectionArgs, null, stats, log);
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    if (stats != null) {
+                        stats.apply(db);
+                    }
+                    log.apply(db);
+                    WeatherCurrentSummary.refresh(db, changes.getWeatherLocationIds());
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
+            }
             case LOCATION:
+                db.beginTransaction();
+                try {
+                    rowsDeleted = db.delete(
+                            WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                    // Compacted weeks and months have no weather rows left to clear them
+                    // away with, so they go with their location
+                    db.delete(WeatherContract.WeatherStatsEntry.TABLE_NAME,
+                            sOrphanedStatsSelection, null);
+                    db.delete(WeatherContract.CurrentSummaryEntry.TABLE_NAME,
+                            sOrphanedSummarySelection, null);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                changes.add(uri);
+                changes.addLocationRewrite();
+                break;
+            case SYNC_METRICS:
                 rowsDeleted = db.delete(
-                        WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME, selection, selectionArgs);
+                changes.add(uri);
                 break;
+            case WEATHER_STAGING:
+                // Nobody can see staged rows, so there's no one to tell
+                return WeatherStaging.discard(db,
+                        WeatherContract.WeatherStagingEntry.getLocationIdFromUri(uri));
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChanges(changes);
         }
         return rowsDeleted;
     }
@@ -294,52 +1001,251 @@ public class WeatherProvider extends ContentProvider {
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final WeatherChangeSet changes = new WeatherChangeSet();
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                WeatherStatsRollup stats = new WeatherStatsRollup();
+                WeatherChangeLog log = new WeatherChangeLog();
+                db.beginTransaction();
+                try {
+                    changes.addWeatherRows(db, selection, selectionArgs, values, stats, log);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    stats.apply(db);
+                    log.apply(db);
+                    WeatherCurrentSummary.refresh(db, changes.getWeatherLocationIds());
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                changes.add(uri);
+                changes.addLocationRewrite();
                 break;
+            case WEATHER_STAGING:
+            case WEATHER_STAGING_PUBLISH: {
+                rowsUpdated = publishStaged(db, uri, match, values, changes);
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChanges(changes);
         }
         return rowsUpdated;
     }
 
+    /*
+        Swaps the forecast staged for the location into the weather table, or one part of the
+        swap for a publish URI, in one transaction of its own or as part of the batch it's in.
+        See WeatherStaging.
+     */
+    private int publishStaged(SQLiteDatabase db, Uri uri, int match, ContentValues values,
+                              WeatherChangeSet changes) {
+        Long startDate = values != null
+                ? values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE) : null;
+        if (startDate == null) {
+            throw new IllegalArgumentException("The first day of the forecast is needed in " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " to publish " + uri);
+        }
+        long locationId = WeatherContract.WeatherStagingEntry.getLocationIdFromUri(uri);
+        String part = match == WEATHER_STAGING_PUBLISH
+                ? WeatherContract.WeatherStagingEntry.getPublishPartFromUri(uri) : null;
+        if (part != null && !WeatherContract.WeatherStagingEntry.PUBLISH_DELETED.equals(part)
+                && !WeatherContract.WeatherStagingEntry.PUBLISH_UPDATED.equals(part)
+                && !WeatherContract.WeatherStagingEntry.PUBLISH_INSERTED.equals(part)) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        startDate = WeatherContract.normalizeDate(startDate);
+        WeatherStatsRollup stats = new WeatherStatsRollup();
+        WeatherChangeLog log = new WeatherChangeLog();
+        int rowsWritten;
+        db.beginTransaction();
+        try {
+            if (part == null) {
+                rowsWritten = WeatherStaging.publish(db, locationId, startDate, changes, stats,
+                        log);
+            } else if (WeatherContract.WeatherStagingEntry.PUBLISH_DELETED.equals(part)) {
+                rowsWritten = WeatherStaging.publishDeleted(db, locationId, startDate, changes,
+                        stats, log);
+            } else if (WeatherContract.WeatherStagingEntry.PUBLISH_UPDATED.equals(part)) {
+                rowsWritten = WeatherStaging.publishUpdated(db, locationId, startDate, changes,
+                        stats, log);
+            } else {
+                rowsWritten = WeatherStaging.publishInserted(db, locationId, startDate, changes,
+                        stats, log);
+            }
+            stats.apply(db);
+            log.apply(db);
+            WeatherCurrentSummary.refresh(db, changes.getWeatherLocationIds());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowsWritten;
+    }
+
+    /*
+        Staged rows go into weather_staging and nowhere else, so the weather table, the query
+        cache and every observer are left alone until they're published.
+     */
+    private int stageForecast(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int returnCount;
+        db.beginTransaction();
+        try {
+            returnCount = WeatherStaging.stage(db,
+                    WeatherContract.WeatherStagingEntry.getLocationIdFromUri(uri), values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /*
+        All three tables are filled through one compiled INSERT statement per call, inside a
+        single transaction.  See BulkInsertStatement.
+     */
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        String table;
+        String dateColumn = null;
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                table = WeatherContract.WeatherEntry.TABLE_NAME;
+                dateColumn = WeatherContract.WeatherEntry.COLUMN_DATE;
+                break;
+            case LOCATION:
+                table = WeatherContract.LocationEntry.TABLE_NAME;
+                break;
+            case SYNC_METRICS:
+                table = WeatherContract.SyncMetricsEntry.TABLE_NAME;
+                break;
+            case WEATHER_STAGING:
+                return stageForecast(uri, values);
             default:
                 return super.bulkInsert(uri, values);
         }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final WeatherChangeSet changes = new WeatherChangeSet();
+        final WeatherStatsRollup stats = new WeatherStatsRollup();
+        final WeatherChangeLog log = new WeatherChangeLog();
+        BulkInsertStatement statement = new BulkInsertStatement(db, table, dateColumn);
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long _id = statement.insert(value);
+                if (_id != -1) {
+                    returnCount++;
+                    if (match == WEATHER) {
+                        // the date has been normalized in place
+                        Long locationId =
+                                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                        changes.addWeather(locationId, date);
+                        stats.addDay(locationId, date);
+                        log.add(locationId, date,
+                                WeatherContract.WeatherChangesEntry.OPERATION_INSERT);
+                    }
+                }
+            }
+            // in the same transaction, so the stats, the log and the current summaries never
+            // disagree with the weather
+            stats.apply(db);
+            log.apply(db);
+            WeatherCurrentSummary.refresh(db, changes.getWeatherLocationIds());
+            if (match != WEATHER) {
+                changes.add(uri);
+            }
+            if (match == SYNC_METRICS) {
+                trimSyncMetrics(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+        notifyChanges(changes);
+        return returnCount;
+    }
+
+    /*
+        Keeps the sync_metrics table from growing without bound by dropping everything but the
+        most recent SYNC_METRICS_MAX_ROWS rows.
+     */
+    private void trimSyncMetrics(SQLiteDatabase db) {
+        db.delete(WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                WeatherContract.SyncMetricsEntry._ID + " <= (SELECT MAX(" +
+                        WeatherContract.SyncMetricsEntry._ID + ") FROM " +
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME + ") - " +
+                        SYNC_METRICS_MAX_ROWS,
+                null);
+    }
+
+    /*
+        Runs the whole batch in one transaction, so that the forecasts the sync adapter
+        publishes for its locations either all land or none of them do.  Observers are told
+        about each changed URI once, after the batch has been committed.
+
+        Weather changes are notified on weather/[location] or weather/[location]/[date] for the
+        rows actually written, rather than on weather/, so that a sync of several locations
+        doesn't make every open forecast re-query.  See WeatherChangeSet.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final WeatherChangeSet batchChanges = new WeatherChangeSet();
+        ContentProviderResult[] results;
+        mBatchChanges.set(batchChanges);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
+        publishChanges(batchChanges);
+        return results;
+    }
+
+    private void notifyChanges(WeatherChangeSet changes) {
+        WeatherChangeSet batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            // inside applyBatch; held back until the batch commits
+            batchChanges.addAll(changes);
+        } else {
+            publishChanges(changes);
+        }
+    }
+
+    /*
+        Called once the changes are committed.
+     */
+    private void publishChanges(WeatherChangeSet changes) {
+        mQueryCache.onWrite();
+        if (changes.hasLocationRewrites()) {
+            onLocationsChanged();
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (Uri uri : changes.getUris(mOpenHelper.getReadableDatabase())) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
     }
 
     // You do not need to call this method. This is a method specifically to assist the testing
@@ -348,6 +1254,7 @@ public class WeatherProvider extends ContentProvider {
     @Override
     @TargetApi(11)
     public void shutdown() {
+        mQueryCache.clear();
         mOpenHelper.close();
         super.shutdown();
     }
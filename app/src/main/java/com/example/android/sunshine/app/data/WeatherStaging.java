@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherChangesEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStagingEntry;
+
+/**
+ * Stages a location's new forecast in the weather_staging table and swaps it into the weather
+ * table, see {@link WeatherStagingEntry}.
+ *
+ * Staging only writes weather_staging, which nobody reads, so it can take as long as it likes.
+ * The swap then works out in SQL which days are new, which changed and which are no longer
+ * forecast, and writes only those, so the transaction readers wait on is a handful of
+ * statements however many days there are.  Unchanged days are left alone: not rewritten, not
+ * logged and not notified.
+ */
+class WeatherStaging {
+
+    // The columns that make up a day's forecast, i.e. everything but the keys
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final String STAGED = WeatherStagingEntry.TABLE_NAME;
+    private static final String WEATHER = WeatherEntry.TABLE_NAME;
+
+    //location_id = ?
+    private static final String sLocationSelection = WeatherEntry.COLUMN_LOC_KEY + " = ?";
+
+    //weather_staging.location_id = weather.location_id AND weather_staging.date = weather.date
+    private static final String sSameDay =
+            STAGED + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+                    WEATHER + "." + WeatherEntry.COLUMN_LOC_KEY + " AND " +
+                    STAGED + "." + WeatherEntry.COLUMN_DATE + " = " +
+                    WEATHER + "." + WeatherEntry.COLUMN_DATE;
+
+    //location_id = ? AND date >= ?
+    private static final String sLocationFromDateSelection =
+            WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    // Weather rows whose day isn't staged: no longer forecast
+    private static final String sStaleSelection = sLocationFromDateSelection +
+            "AND NOT EXISTS (SELECT 1 FROM " + STAGED + " WHERE " + sSameDay + ")";
+
+    // Weather rows whose staged day differs in any column
+    private static final String sChangedSelection;
+
+    // Staged rows whose day isn't in the weather table yet
+    private static final String sNewSelection = sLocationFromDateSelection +
+            "AND NOT EXISTS (SELECT 1 FROM " + WEATHER + " WHERE " + sSameDay + ")";
+
+    // Copies the staged columns over the changed rows, keeping their _id
+    private static final String SQL_UPDATE_CHANGED;
+
+    private static final String SQL_INSERT_NEW;
+
+    static {
+        StringBuilder differs = new StringBuilder();
+        StringBuilder set = new StringBuilder();
+        StringBuilder columns = new StringBuilder(
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE);
+        for (int i = 0; i < FORECAST_COLUMNS.length; i++) {
+            String column = FORECAST_COLUMNS[i];
+            // every column is NOT NULL, so = is enough
+            differs.append(i > 0 ? " OR " : "")
+                    .append(STAGED).append('.').append(column).append(" != ")
+                    .append(WEATHER).append('.').append(column);
+            set.append(i > 0 ? ", " : "").append(column).append(" = (SELECT ")
+                    .append(STAGED).append('.').append(column).append(" FROM ").append(STAGED)
+                    .append(" WHERE ").append(sSameDay).append(')');
+            columns.append(", ").append(column);
+        }
+        sChangedSelection = sLocationFromDateSelection +
+                "AND EXISTS (SELECT 1 FROM " + STAGED + " WHERE " + sSameDay +
+                " AND (" + differs + "))";
+        SQL_UPDATE_CHANGED = "UPDATE " + WEATHER + " SET " + set + " WHERE " + sChangedSelection;
+        SQL_INSERT_NEW = "INSERT INTO " + WEATHER + " (" + columns + ") SELECT " + columns +
+                " FROM " + STAGED + " WHERE " + sNewSelection;
+    }
+
+    private WeatherStaging() {
+    }
+
+    /**
+     * Replaces whatever was staged for the location with these days.  Call inside a
+     * transaction.
+     *
+     * @return the number of days staged
+     */
+    static int stage(SQLiteDatabase db, long locationId, ContentValues[] days) {
+        discard(db, locationId);
+        BulkInsertStatement statement =
+                new BulkInsertStatement(db, STAGED, WeatherEntry.COLUMN_DATE);
+        int staged = 0;
+        try {
+            for (ContentValues day : days) {
+                day.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                if (statement.insert(day) != -1) {
+                    staged++;
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        return staged;
+    }
+
+    /**
+     * @return the number of staged days thrown away
+     */
+    static int discard(SQLiteDatabase db, long locationId) {
+        return db.delete(STAGED, sLocationSelection, new String[]{Long.toString(locationId)});
+    }
+
+    /**
+     * Makes the location's weather from startDate on match what was staged for it, and clears
+     * the staging rows.  Call inside the transaction readers should see the whole swap in.
+     * Callers that count deletes, updates and inserts apart can run publishDeleted,
+     * publishUpdated and publishInserted instead, in that order and in one transaction.
+     *
+     * @param startDate the normalized date of the first day the staged forecast covers
+     * @return the number of weather rows inserted, updated and deleted
+     */
+    static int publish(SQLiteDatabase db, long locationId, long startDate,
+                       WeatherChangeSet changes, WeatherStatsRollup stats, WeatherChangeLog log) {
+        return publishDeleted(db, locationId, startDate, changes, stats, log)
+                + publishUpdated(db, locationId, startDate, changes, stats, log)
+                + publishInserted(db, locationId, startDate, changes, stats, log);
+    }
+
+    /**
+     * Deletes the location's weather rows from startDate on whose day isn't staged.
+     *
+     * @return the number of weather rows deleted
+     */
+    static int publishDeleted(SQLiteDatabase db, long locationId, long startDate,
+                              WeatherChangeSet changes, WeatherStatsRollup stats,
+                              WeatherChangeLog log) {
+        String[] args = {Long.toString(locationId), Long.toString(startDate)};
+        int deleted = changes.addWeatherRows(db, sStaleSelection, args, null, stats, log);
+        if (deleted > 0) {
+            db.delete(WEATHER, sStaleSelection, args);
+        }
+        return deleted;
+    }
+
+    /**
+     * Copies the staged days over the weather rows of the same day that differ from them.
+     *
+     * @return the number of weather rows updated
+     */
+    static int publishUpdated(SQLiteDatabase db, long locationId, long startDate,
+                              WeatherChangeSet changes, WeatherStatsRollup stats,
+                              WeatherChangeLog log) {
+        String[] args = {Long.toString(locationId), Long.toString(startDate)};
+        // An update that keeps the location and day: only the values change
+        int updated = changes.addWeatherRows(db, sChangedSelection, args, new ContentValues(),
+                stats, log);
+        if (updated > 0) {
+            db.execSQL(SQL_UPDATE_CHANGED, args);
+        }
+        return updated;
+    }
+
+    /**
+     * Inserts the staged days the weather table doesn't have yet, and clears the staging rows.
+     *
+     * @return the number of weather rows inserted
+     */
+    static int publishInserted(SQLiteDatabase db, long locationId, long startDate,
+                               WeatherChangeSet changes, WeatherStatsRollup stats,
+                               WeatherChangeLog log) {
+        String[] args = {Long.toString(locationId), Long.toString(startDate)};
+        int inserted = 0;
+        Cursor cursor = db.query(STAGED, new String[]{WeatherEntry.COLUMN_DATE},
+                sNewSelection, args, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long date = cursor.getLong(0);
+                changes.addWeather(locationId, date);
+                stats.addDay(locationId, date);
+                log.add(locationId, date, WeatherChangesEntry.OPERATION_INSERT);
+                inserted++;
+            }
+            if (inserted > 0) {
+                db.execSQL(SQL_INSERT_NEW, args);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        discard(db, locationId);
+        return inserted;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherStatsEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the weather_stats rollup in step with the weather table.
+ *
+ * The days a write touches are collected with {@link #addDay}, and {@link #apply} then works out
+ * again each week and month they fall in, from the weather rows of that period alone, in the
+ * write's transaction.  Working a period out again rather than adding to it is what lets
+ * replaced, updated and deleted days come out right, since a minimum or maximum can't be
+ * taken back.  Either way the cost is a few dozen rows per period touched, however long the
+ * history is.
+ */
+class WeatherStatsRollup {
+
+    private static final String SQL_DELETE_PERIOD = "DELETE FROM " + WeatherStatsEntry.TABLE_NAME +
+            " WHERE " + WeatherStatsEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherStatsEntry.COLUMN_PERIOD + " = ? AND " +
+            WeatherStatsEntry.COLUMN_PERIOD_START + " = ?";
+
+    // Nothing is inserted for a period with no days left
+    private static final String SQL_INSERT_PERIOD = "INSERT INTO " + WeatherStatsEntry.TABLE_NAME +
+            " (" + WeatherStatsEntry.COLUMN_LOC_KEY + ", " +
+            WeatherStatsEntry.COLUMN_PERIOD + ", " +
+            WeatherStatsEntry.COLUMN_PERIOD_START + ", " +
+            WeatherStatsEntry.COLUMN_DAYS + ", " +
+            WeatherStatsEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherStatsEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherStatsEntry.COLUMN_SUM_TEMP + ", " +
+            WeatherStatsEntry.COLUMN_MIN_HUMIDITY + ", " +
+            WeatherStatsEntry.COLUMN_MAX_HUMIDITY + ", " +
+            WeatherStatsEntry.COLUMN_SUM_HUMIDITY + ", " +
+            WeatherStatsEntry.COLUMN_MIN_WIND_SPEED + ", " +
+            WeatherStatsEntry.COLUMN_MAX_WIND_SPEED + ", " +
+            WeatherStatsEntry.COLUMN_SUM_WIND_SPEED + ")" +
+            " SELECT " + WeatherEntry.COLUMN_LOC_KEY + ", ?, ?, COUNT(*), " +
+            "MIN(" + WeatherEntry.COLUMN_MIN_TEMP + "), " +
+            "MAX(" + WeatherEntry.COLUMN_MAX_TEMP + "), " +
+            "SUM((" + WeatherEntry.COLUMN_MIN_TEMP + " + " + WeatherEntry.COLUMN_MAX_TEMP + ") / 2), " +
+            "MIN(" + WeatherEntry.COLUMN_HUMIDITY + "), " +
+            "MAX(" + WeatherEntry.COLUMN_HUMIDITY + "), " +
+            "SUM(" + WeatherEntry.COLUMN_HUMIDITY + "), " +
+            "MIN(" + WeatherEntry.COLUMN_WIND_SPEED + "), " +
+            "MAX(" + WeatherEntry.COLUMN_WIND_SPEED + "), " +
+            "SUM(" + WeatherEntry.COLUMN_WIND_SPEED + ")" +
+            " FROM " + WeatherEntry.TABLE_NAME +
+            " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_DATE + " < ?" +
+            " GROUP BY " + WeatherEntry.COLUMN_LOC_KEY;
+
+    private final Time mTime = new Time();
+    // "location_id period first_julian_day", so each period is only worked out once
+    private final Set<String> mPeriodKeys = new HashSet<String>();
+    private final List<Period> mPeriods = new ArrayList<Period>();
+
+    private static class Period {
+        final long locationId;
+        final String period;
+        // normalized dates; end is the first day after the period
+        final long start;
+        final long end;
+
+        Period(long locationId, String period, long start, long end) {
+            this.locationId = locationId;
+            this.period = period;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Marks the week and the month of this day of this location to be worked out again.
+     */
+    void addDay(long locationId, long date) {
+        mTime.set(date);
+        int julianDay = Time.getJulianDay(date, mTime.gmtoff);
+        int monthStart = julianDay - (mTime.monthDay - 1);
+        int monthEnd = monthStart + mTime.getActualMaximum(Time.MONTH_DAY);
+        // Julian day 0 was a Monday
+        int weekStart = julianDay - julianDay % 7;
+
+        addPeriod(locationId, WeatherStatsEntry.PERIOD_WEEK, weekStart, weekStart + 7);
+        addPeriod(locationId, WeatherStatsEntry.PERIOD_MONTH, monthStart, monthEnd);
+    }
+
+    private void addPeriod(long locationId, String period, int startDay, int endDay) {
+        if (mPeriodKeys.add(locationId + " " + period + " " + startDay)) {
+            mPeriods.add(new Period(locationId, period,
+                    mTime.setJulianDay(startDay), mTime.setJulianDay(endDay)));
+        }
+    }
+
+    /**
+     * Works out the marked periods again from the weather table.  Call inside the transaction
+     * of the write, after it.
+     */
+    void apply(SQLiteDatabase db) {
+        if (mPeriods.isEmpty()) {
+            return;
+        }
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE_PERIOD);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_PERIOD);
+        try {
+            for (Period period : mPeriods) {
+                delete.bindLong(1, period.locationId);
+                delete.bindString(2, period.period);
+                delete.bindLong(3, period.start);
+                delete.execute();
+
+                insert.bindString(1, period.period);
+                insert.bindLong(2, period.start);
+                insert.bindLong(3, period.locationId);
+                insert.bindLong(4, period.start);
+                insert.bindLong(5, period.end);
+                insert.execute();
+            }
+        } finally {
+            delete.close();
+            insert.close();
+        }
+        mPeriods.clear();
+        mPeriodKeys.clear();
+    }
+
+    /**
+     * Fills weather_stats from scratch, for a database that had weather before it had stats.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.delete(WeatherStatsEntry.TABLE_NAME, null, null);
+        WeatherStatsRollup rollup = new WeatherStatsRollup();
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                rollup.addDay(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        rollup.apply(db);
+    }
+}
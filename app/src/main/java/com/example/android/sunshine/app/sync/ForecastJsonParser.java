@@ -0,0 +1,356 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.text.format.Time;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Turns an OpenWeatherMap daily forecast response into weather {@link ContentValues}.
+ *
+ * The streaming path pulls tokens straight off the connection's input stream, so the response
+ * never exists as a String or as a JSONObject tree.  The tree path is kept for devices older
+ * than Honeycomb, which don't have {@link JsonReader}.
+ */
+public class ForecastJsonParser {
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    /**
+     * Receives the pieces of a forecast as they are parsed.
+     */
+    public interface Callback {
+        /**
+         * Called once with the city the forecast is for.
+         */
+        void onLocation(String cityName, double lat, double lon);
+
+        /**
+         * Called once per day, in order.  The values hold every weather column except
+         * {@link WeatherContract.WeatherEntry#COLUMN_LOC_KEY}, which the caller fills in.
+         */
+        void onDay(ContentValues weatherValues);
+    }
+
+    private ForecastJsonParser() {
+    }
+
+    /**
+     * Streams the forecast from the given input stream.
+     *
+     * @param in the raw response body.  It is not closed by this method.
+     * @param julianStartDay the Julian day of the first element in the "list" array.
+     * @param callback receives the location and each day as soon as it has been read.
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     * response doesn't carry one.  Anything other than HTTP_OK means the data should be ignored.
+     * @throws JSONException if the response is not a well-formed forecast.
+     * @throws IOException if the stream could not be read.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static int parse(InputStream in, int julianStartDay, Callback callback)
+            throws JSONException, IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean hasCity = false;
+        boolean hasList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    messageCode = reader.nextInt();
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, callback);
+                    hasCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    readDays(reader, julianStartDay, callback);
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw asJSONException(e);
+        } catch (EOFException e) {
+            // The body ended before the JSON did.  The tree path sees the same body as malformed,
+            // and it's the server's doing rather than the network's.
+            throw asJSONException(e);
+        }
+
+        if (messageCode == HttpURLConnection.HTTP_OK && !(hasCity && hasList)) {
+            throw new JSONException("Forecast is missing " + (hasCity ? OWM_LIST : OWM_CITY));
+        }
+        return messageCode;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        String cityName = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || Double.isNaN(lat) || Double.isNaN(lon)) {
+            throw new JSONException("Incomplete " + OWM_CITY + " object");
+        }
+        callback.onLocation(cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readDays(JsonReader reader, int julianStartDay, Callback callback)
+            throws IOException, JSONException {
+        // we work exclusively in UTC
+        Time dayTime = new Time();
+
+        reader.beginArray();
+        for (int i = 0; reader.hasNext(); i++) {
+            ContentValues weatherValues = new ContentValues();
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    dayTime.setJulianDay(julianStartDay + i));
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_PRESSURE.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                            reader.nextDouble());
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                            reader.nextInt());
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                            reader.nextDouble());
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                            reader.nextDouble());
+                } else if (OWM_WEATHER.equals(name)) {
+                    readWeather(reader, weatherValues);
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    readTemperature(reader, weatherValues);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            checkDay(weatherValues);
+            callback.onDay(weatherValues);
+        }
+        reader.endArray();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readWeather(JsonReader reader, ContentValues weatherValues)
+            throws IOException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.
+        reader.beginArray();
+        boolean first = true;
+        while (reader.hasNext()) {
+            if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            first = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                            reader.nextString());
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                            reader.nextInt());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readTemperature(JsonReader reader, ContentValues weatherValues)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MAX.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        reader.nextDouble());
+            } else if (OWM_MIN.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        reader.nextDouble());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * The tree path insisted on every field being present, so the streaming path does too.
+     */
+    private static void checkDay(ContentValues weatherValues) throws JSONException {
+        final String[] required = {
+                WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+        };
+        for (String column : required) {
+            if (!weatherValues.containsKey(column)) {
+                throw new JSONException("Day is missing " + column);
+            }
+        }
+    }
+
+    private static JSONException asJSONException(Exception e) {
+        JSONException jsonException = new JSONException(e.getMessage());
+        jsonException.initCause(e);
+        return jsonException;
+    }
+
+    /**
+     * Parses a forecast that has already been read into a String, by building the complete
+     * JSONObject tree.  Used where {@link JsonReader} is not available.
+     *
+     * @see #parse(InputStream, int, Callback)
+     */
+    public static int parse(String forecastJsonStr, int julianStartDay, Callback callback)
+            throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        String cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+
+        callback.onLocation(cityName, cityLatitude, cityLongitude);
+
+        // we work exclusively in UTC
+        Time dayTime = new Time();
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            ContentValues weatherValues = new ContentValues();
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    dayTime.setJulianDay(julianStartDay + i));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                    dayForecast.getInt(OWM_HUMIDITY));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                    dayForecast.getDouble(OWM_PRESSURE));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                    dayForecast.getDouble(OWM_WINDSPEED));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                    dayForecast.getDouble(OWM_WIND_DIRECTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    temperatureObject.getDouble(OWM_MAX));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                    temperatureObject.getDouble(OWM_MIN));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                    weatherObject.getString(OWM_DESCRIPTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    weatherObject.getInt(OWM_WEATHER_ID));
+
+            callback.onDay(weatherValues);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * A small on-disk cache of what we last stored for a forecast request.
+ *
+ * It remembers the response validators (ETag and Last-Modified) so the next request can be made
+ * conditional, and a hash of the response body so that a 200 carrying the same forecast can be
+ * recognised.  Only metadata is kept; the forecast itself already lives in the database.
+ *
+ * Dates in the database are derived from the day the sync runs on, so an entry is only honoured
+ * on the same Julian day it was written.
+ *
+ * Entries are keyed by the request URI without its API key, so that the key is never written to
+ * the cache directory; the response doesn't depend on it anyway.
+ */
+class ForecastResponseCache {
+    private static final String LOG_TAG = ForecastResponseCache.class.getSimpleName();
+
+    private static final String CACHE_DIR = "forecast_responses_v2";
+    // Where entries were kept when they held the whole request URI, API key included
+    private static final String OLD_CACHE_DIR = "forecast_responses";
+    // One entry per requested location is plenty
+    private static final int MAX_ENTRIES = 32;
+
+    // The query parameter that carries the OpenWeatherMap API key
+    static final String APPID_PARAM = "APPID";
+
+    private static final String KEY_URI = "uri";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_JULIAN_DAY = "julian_day";
+    private static final String KEY_BODY_HASH = "body_hash";
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    private final File mDir;
+    private final File mFile;
+    private final String mUri;
+    private final Properties mEntry;
+
+    private String mPendingETag;
+    private String mPendingLastModified;
+
+    ForecastResponseCache(Context context, Uri requestUri) {
+        mDir = new File(context.getCacheDir(), CACHE_DIR);
+        mUri = withoutApiKey(requestUri).toString();
+        mFile = new File(mDir, hash(mUri));
+        mEntry = load(mFile, mUri);
+    }
+
+    /**
+     * Makes the request conditional on the response we stored last time, provided it was stored
+     * today.
+     */
+    void addConditionalHeaders(HttpURLConnection urlConnection, int julianDay) {
+        if (!isCurrent(julianDay)) {
+            return;
+        }
+        String eTag = mEntry.getProperty(KEY_ETAG);
+        if (eTag != null) {
+            urlConnection.setRequestProperty("If-None-Match", eTag);
+        }
+        String lastModified = mEntry.getProperty(KEY_LAST_MODIFIED);
+        if (lastModified != null) {
+            urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Remembers the validators of a response, to be written by {@link #commit(int, String)}
+     * once its forecast has been stored.
+     */
+    void onResponse(HttpURLConnection urlConnection) {
+        mPendingETag = urlConnection.getHeaderField("ETag");
+        mPendingLastModified = urlConnection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * @return true if a response with this body hash was already stored today.
+     */
+    boolean isUnchanged(int julianDay, String bodyHash) {
+        return isCurrent(julianDay) && bodyHash.equals(mEntry.getProperty(KEY_BODY_HASH));
+    }
+
+    /**
+     * Records that the response has been stored in the database.
+     */
+    void commit(int julianDay, String bodyHash) {
+        mEntry.clear();
+        mEntry.setProperty(KEY_URI, mUri);
+        mEntry.setProperty(KEY_JULIAN_DAY, Integer.toString(julianDay));
+        mEntry.setProperty(KEY_BODY_HASH, bodyHash);
+        if (mPendingETag != null) {
+            mEntry.setProperty(KEY_ETAG, mPendingETag);
+        }
+        if (mPendingLastModified != null) {
+            mEntry.setProperty(KEY_LAST_MODIFIED, mPendingLastModified);
+        }
+
+        if (!mDir.isDirectory()) {
+            if (!mDir.mkdirs()) {
+                Log.w(LOG_TAG, "Unable to create " + mDir);
+                return;
+            }
+            deleteOldEntries(mDir.getParentFile());
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile);
+            mEntry.store(out, null);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to write " + mFile, e);
+            mFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+        trim();
+    }
+
+    /**
+     * Forgets what was stored for this request, e.g. because the database no longer has it.
+     */
+    void invalidate() {
+        mEntry.clear();
+        mFile.delete();
+    }
+
+    private boolean isCurrent(int julianDay) {
+        return Integer.toString(julianDay).equals(mEntry.getProperty(KEY_JULIAN_DAY));
+    }
+
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES) {
+            return;
+        }
+        // oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - MAX_ENTRIES; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * @return the URI with its APPID query parameter left out
+     */
+    static Uri withoutApiKey(Uri uri) {
+        String query = uri.getEncodedQuery();
+        if (query == null) {
+            return uri;
+        }
+        // Uri.getQueryParameterNames() needs API 11, so the encoded query is filtered as it is
+        StringBuilder kept = new StringBuilder(query.length());
+        for (String parameter : query.split("&")) {
+            int end = parameter.indexOf('=');
+            String name = end == -1 ? parameter : parameter.substring(0, end);
+            if (APPID_PARAM.equals(Uri.decode(name))) {
+                continue;
+            }
+            if (kept.length() > 0) {
+                kept.append('&');
+            }
+            kept.append(parameter);
+        }
+        return uri.buildUpon().encodedQuery(kept.length() > 0 ? kept.toString() : null).build();
+    }
+
+    private static void deleteOldEntries(File cacheDir) {
+        File oldDir = new File(cacheDir, OLD_CACHE_DIR);
+        File[] files = oldDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        oldDir.delete();
+    }
+
+    private static Properties load(File file, String uri) {
+        Properties entry = new Properties();
+        if (!file.isFile()) {
+            return entry;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            entry.load(in);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read " + file, e);
+            entry.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        // Guard against the (unlikely) case of two URIs hashing to the same file
+        if (!uri.equals(entry.getProperty(KEY_URI))) {
+            entry.clear();
+        }
+        return entry;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hash(String value) {
+        try {
+            return toHex(newDigest().digest(value.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
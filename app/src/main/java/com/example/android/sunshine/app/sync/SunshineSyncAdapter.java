@@ -7,11 +7,14 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,6 +25,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
@@ -46,9 +50,7 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
@@ -59,8 +61,16 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -71,14 +81,29 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // Sync extra: also fetch every saved location, not just the preferred one
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "all_locations";
+    // Sync extra: how many locations may be downloaded at the same time
+    public static final String SYNC_EXTRAS_MAX_PARALLEL_FETCHES = "max_parallel_fetches";
+    public static final int DEFAULT_MAX_PARALLEL_FETCHES = 4;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
+    // The parts each location's forecast is published in, in the order they have to run.
+    // storeWeatherData counts their results as deletes, updates and inserts in this order.
+    private static final String[] PUBLISH_PARTS = {
+            WeatherContract.WeatherStagingEntry.PUBLISH_DELETED,
+            WeatherContract.WeatherStagingEntry.PUBLISH_UPDATED,
+            WeatherContract.WeatherStagingEntry.PUBLISH_INSERTED
+    };
+
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+            WeatherContract.CurrentSummaryEntry.COLUMN_WEATHER_ID,
+            WeatherContract.CurrentSummaryEntry.COLUMN_MAX_TEMP,
+            WeatherContract.CurrentSummaryEntry.COLUMN_MIN_TEMP,
+            WeatherContract.CurrentSummaryEntry.COLUMN_SHORT_DESC,
+            WeatherContract.CurrentSummaryEntry.COLUMN_ART_KEY
     };
 
     // these indices must match the projection
@@ -86,6 +111,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int INDEX_MAX_TEMP = 1;
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
+    private static final int INDEX_ART_KEY = 4;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -108,6 +134,112 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         Context context = getContext();
         String locationQuery = Utility.getPreferredLocation(context);
 
+        // The preferred location always comes first; saved locations only on request
+        List<String> locationQueries = new ArrayList<String>();
+        locationQueries.add(locationQuery);
+        if (extras != null && extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS, false)) {
+            for (String savedLocation : getSavedLocations()) {
+                if (!locationQueries.contains(savedLocation)) {
+                    locationQueries.add(savedLocation);
+                }
+            }
+        }
+        int maxParallelFetches = extras == null ? DEFAULT_MAX_PARALLEL_FETCHES
+                : extras.getInt(SYNC_EXTRAS_MAX_PARALLEL_FETCHES, DEFAULT_MAX_PARALLEL_FETCHES);
+
+        SyncMetrics metrics = new SyncMetrics();
+        int julianStartDay = getJulianStartDay();
+        List<FetchResult> results = fetchForecasts(locationQueries, julianStartDay,
+                maxParallelFetches, metrics);
+        storeWeatherData(results, julianStartDay, syncResult, metrics);
+        metrics.save(context.getContentResolver());
+
+        // Normally done by WeatherRetentionTaskService, which needs Google Play services
+        if (WeatherRetention.isDue(context, System.currentTimeMillis())) {
+            try {
+                WeatherRetention.run(context);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error applying weather retention", e);
+            }
+        }
+
+        // The status shown to the user is the one of the preferred location
+        @LocationStatus int status = results.get(0).status;
+        if (status != LOCATION_STATUS_UNKNOWN) {
+            setLocationStatus(context, status);
+        }
+    }
+
+    /**
+     * Downloads the forecasts for all of the given locations, at most maxParallelFetches at a
+     * time.  Nothing is written to the database here.
+     *
+     * @return one result per location, in the same order.
+     */
+    private List<FetchResult> fetchForecasts(List<String> locationQueries,
+                                             final int julianStartDay, int maxParallelFetches,
+                                             final SyncMetrics metrics) {
+        List<FetchResult> results = new ArrayList<FetchResult>(locationQueries.size());
+        if (locationQueries.size() == 1 || maxParallelFetches <= 1) {
+            for (String locationQuery : locationQueries) {
+                results.add(fetchForecast(locationQuery, julianStartDay, metrics));
+            }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(maxParallelFetches, locationQueries.size()));
+        try {
+            List<Future<FetchResult>> futures =
+                    new ArrayList<Future<FetchResult>>(locationQueries.size());
+            for (final String locationQuery : locationQueries) {
+                futures.add(executor.submit(new Callable<FetchResult>() {
+                    @Override
+                    public FetchResult call() {
+                        return fetchForecast(locationQuery, julianStartDay, metrics);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(LOG_TAG, "Error fetching " + locationQueries.get(i), e);
+                    FetchResult failed = new FetchResult(locationQueries.get(i));
+                    failed.status = LOCATION_STATUS_SERVER_DOWN;
+                    results.add(failed);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * The outcome of downloading the forecast for one location.
+     */
+    private static class FetchResult {
+        final String locationSetting;
+        @LocationStatus int status = LOCATION_STATUS_UNKNOWN;
+        // The database already holds exactly this forecast
+        boolean unchanged;
+        ForecastCollector collector;
+        ForecastResponseCache responseCache;
+        String bodyHash;
+
+        FetchResult(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+    }
+
+    /**
+     * Downloads and parses the forecast for a single location.  Safe to call from any thread.
+     */
+    private FetchResult fetchForecast(String locationQuery, int julianStartDay,
+                                      SyncMetrics metrics) {
+        FetchResult result = new FetchResult(locationQuery);
+
         // These two need to be declared outside the try/catch
         // so that they can be closed in the finally block.
         HttpURLConnection urlConnection = null;
@@ -130,31 +262,66 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             final String FORMAT_PARAM = "mode";
             final String UNITS_PARAM = "units";
             final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
 
             Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
                     .appendQueryParameter(QUERY_PARAM, locationQuery)
                     .appendQueryParameter(FORMAT_PARAM, format)
                     .appendQueryParameter(UNITS_PARAM, units)
                     .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                    .appendQueryParameter(ForecastResponseCache.APPID_PARAM,
+                            BuildConfig.OPEN_WEATHER_MAP_API_KEY)
                     .build();
 
             URL url = new URL(builtUri.toString());
 
+            ForecastResponseCache responseCache = new ForecastResponseCache(getContext(), builtUri);
+            result.responseCache = responseCache;
+
             // Create the request to OpenWeatherMap, and open the connection
             urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setRequestMethod("GET");
+            // Only ask "has anything changed?" if we still have what we stored last time
+            if (hasForecastForDay(locationQuery, julianStartDay)) {
+                responseCache.addConditionalHeaders(urlConnection, julianStartDay);
+            } else {
+                responseCache.invalidate();
+            }
+            long start = SyncMetrics.now();
             urlConnection.connect();
+            metrics.record(locationQuery, WeatherContract.SyncMetricsEntry.PHASE_CONNECT,
+                    start, 0, 0);
+
+            start = SyncMetrics.now();
+            int responseCode = urlConnection.getResponseCode();
+            metrics.record(locationQuery, WeatherContract.SyncMetricsEntry.PHASE_FIRST_BYTE,
+                    start, 0, 0);
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // The forecast in the database is still current.  Nothing to parse or store.
+                Log.d(LOG_TAG, locationQuery + ": forecast not modified");
+                result.unchanged = true;
+                result.status = LOCATION_STATUS_OK;
+                return result;
+            }
+            responseCache.onResponse(urlConnection);
 
-            // Read the input stream into a String
             InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
             if (inputStream == null) {
                 // Nothing to do.
-                return;
+                return result;
+            }
+            SyncMetrics.TimedInputStream timedStream = new SyncMetrics.TimedInputStream(inputStream);
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                // Pull the forecast straight off the wire, one token at a time.
+                getWeatherDataFromStream(timedStream, julianStartDay, result, metrics);
+                return result;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+
+            // Read the input stream into a String
+            start = SyncMetrics.now();
+            StringBuffer buffer = new StringBuffer();
+            reader = new BufferedReader(new InputStreamReader(timedStream));
 
             String line;
             while ((line = reader.readLine()) != null) {
@@ -163,23 +330,28 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 // buffer for debugging.
                 buffer.append(line + "\n");
             }
+            metrics.record(locationQuery, WeatherContract.SyncMetricsEntry.PHASE_DOWNLOAD,
+                    start, timedStream.getBytes(), 0);
 
             if (buffer.length() == 0) {
                 // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+                result.status = LOCATION_STATUS_SERVER_DOWN;
+                return result;
             }
             forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+            start = SyncMetrics.now();
+            getWeatherDataFromJson(forecastJsonStr, julianStartDay, result);
+            metrics.record(locationQuery, WeatherContract.SyncMetricsEntry.PHASE_PARSE, start, 0,
+                    result.collector != null ? result.collector.cVVector.size() : 0);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            result.status = LOCATION_STATUS_SERVER_DOWN;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            result.status = LOCATION_STATUS_SERVER_INVALID;
         } finally {
             if (urlConnection != null) {
                 urlConnection.disconnect();
@@ -192,181 +364,294 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 }
             }
         }
-        return;
+        return result;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Collects the pieces of a forecast handed out by {@link ForecastJsonParser}, so that
+     * nothing is written to the database until the whole response has been read.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
+    private static class ForecastCollector implements ForecastJsonParser.Callback {
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final Vector<ContentValues> cVVector = new Vector<ContentValues>(14);
+
+        @Override
+        public void onLocation(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.cityLatitude = lat;
+            this.cityLongitude = lon;
+        }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+        @Override
+        public void onDay(ContentValues weatherValues) {
+            cVVector.add(weatherValues);
+        }
+    }
 
-        // These are the names of the JSON objects that need to be extracted.
+    /**
+     * OWM returns daily forecasts based upon the local time of the city that is being
+     * asked for, which means that we need to know the GMT offset to translate this data
+     * properly.
+     *
+     * Since this data is also sent in-order and the first day is always the
+     * current day, we're going to take advantage of that to get a nice
+     * normalized UTC date for all of our weather.
+     */
+    private static int getJulianStartDay() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        // we start at the day returned by local time. Otherwise this is a mess.
+        return Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    /**
+     * Parse the forecast directly from the response stream.  The days are handed to us as they
+     * are read, so the payload never has to be held in memory as a String or an object tree.
+     *
+     * Malformed data is reported as {@link #LOCATION_STATUS_SERVER_INVALID}, exactly like
+     * {@link #getWeatherDataFromJson(String, int, FetchResult)}.
+     *
+     * Download and parse overlap here, so the time spent blocked on the network is recorded as
+     * the download phase and the rest as the parse phase.
+     */
+    private void getWeatherDataFromStream(SyncMetrics.TimedInputStream inputStream,
+                                          int julianStartDay, FetchResult result,
+                                          SyncMetrics metrics)
+            throws IOException {
+        ForecastCollector collector = new ForecastCollector();
+        // Hash the body on its way through the parser, so an identical forecast can be skipped
+        MessageDigest digest = ForecastResponseCache.newDigest();
+        long start = SyncMetrics.now();
+        try {
+            int messageCode = ForecastJsonParser.parse(
+                    new DigestInputStream(inputStream, digest), julianStartDay, collector);
+            onForecastParsed(messageCode, julianStartDay, collector,
+                    ForecastResponseCache.toHex(digest.digest()), result);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            e.printStackTrace();
+            result.status = LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            long elapsed = SyncMetrics.now() - start;
+            metrics.recordDuration(result.locationSetting,
+                    WeatherContract.SyncMetricsEntry.PHASE_DOWNLOAD,
+                    inputStream.getReadNanos(), inputStream.getBytes(), 0);
+            metrics.recordDuration(result.locationSetting,
+                    WeatherContract.SyncMetricsEntry.PHASE_PARSE,
+                    elapsed - inputStream.getReadNanos(), 0, collector.cVVector.size());
+        }
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * Take the String representing the complete forecast in JSON Format and
+     * pull out the data we need to construct the Strings needed for the wireframes.
+     *
+     * Only used before Honeycomb; newer devices go through
+     * {@link #getWeatherDataFromStream(SyncMetrics.TimedInputStream, int, FetchResult, SyncMetrics)}.
+     */
+    private void getWeatherDataFromJson(String forecastJsonStr, int julianStartDay,
+                                        FetchResult result)
+            throws JSONException {
+        ForecastCollector collector = new ForecastCollector();
+        try {
+            int messageCode = ForecastJsonParser.parse(forecastJsonStr, julianStartDay, collector);
+            onForecastParsed(messageCode, julianStartDay, collector,
+                    ForecastResponseCache.hash(forecastJsonStr), result);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            e.printStackTrace();
+            result.status = LOCATION_STATUS_SERVER_INVALID;
+        }
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    /**
+     * Fills in the result of a fetch once its response has been parsed.
+     *
+     * @param messageCode the "cod" value of the response
+     * @param julianStartDay the Julian day of the first forecast day
+     * @param collector the parsed location and days
+     * @param bodyHash hash of the raw response, to recognise a forecast we already stored
+     * @param result the result to fill in
+     */
+    private void onForecastParsed(int messageCode, int julianStartDay,
+                                  ForecastCollector collector, String bodyHash,
+                                  FetchResult result) {
+        switch (messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                result.status = LOCATION_STATUS_INVALID;
+                return;
+            default:
+                result.status = LOCATION_STATUS_SERVER_DOWN;
+                return;
+        }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        result.status = LOCATION_STATUS_OK;
+        result.collector = collector;
+        result.bodyHash = bodyHash;
+        // Same forecast as last time: skip the writes, the widgets, Muzei and the watch.
+        result.unchanged = result.responseCache.isUnchanged(julianStartDay, bodyHash);
+        if (result.unchanged) {
+            Log.d(LOG_TAG, result.locationSetting + ": forecast unchanged");
+        }
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * @return true if the database holds the forecast for the given day at this location, i.e.
+     * a conditional request can safely be answered with "not modified".
+     */
+    private boolean hasForecastForDay(String locationSetting, int julianDay) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                locationSetting, new Time().setJulianDay(julianDay));
+        Cursor cursor = getContext().getContentResolver().query(weatherUri,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * Writes the downloaded forecasts to the database and lets everyone who displays them know.
+     *
+     * Each forecast is staged first, which readers can't see, and then all of them are
+     * published as a single batch.  Publishing only writes the days that changed, in one short
+     * transaction, so a loader that queries during a sync sees either the old forecasts or the
+     * new ones, never a mix.
+     *
+     * @param results the fetched forecasts, one per location
+     * @param julianStartDay the Julian day of the first forecast day
+     * @param syncResult receives the number of days downloaded and of rows inserted, updated
+     *                   and deleted
+     * @param metrics receives the time taken by the writes and the fan-out
+     */
+    private void storeWeatherData(List<FetchResult> results, int julianStartDay,
+                                  SyncResult syncResult, SyncMetrics metrics) {
+        ContentResolver resolver = getContext().getContentResolver();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<FetchResult> stored = new ArrayList<FetchResult>();
+        Time time = new Time();
+        long start = SyncMetrics.now();
+
+        for (FetchResult result : results) {
+            if (result.status != LOCATION_STATUS_OK || result.unchanged) {
+                continue;
+            }
+            ForecastCollector collector = result.collector;
+            long locationId = addLocation(result.locationSetting, collector.cityName,
+                    collector.cityLatitude, collector.cityLongitude);
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            // Stage the new weather information, to be published with the others below
+            Vector<ContentValues> cVVector = collector.cVVector;
+            if ( cVVector.size() > 0 ) {
+                long startDate = Long.MAX_VALUE;
+                for (ContentValues weatherValues : cVVector) {
+                    startDate = Math.min(startDate, WeatherContract.normalizeDate(
+                            weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                            time));
+                }
+                Uri stagingUri = WeatherContract.WeatherStagingEntry.buildStagingUri(locationId);
+                syncResult.stats.numEntries += resolver.bulkInsert(stagingUri,
+                        cVVector.toArray(new ContentValues[cVVector.size()]));
+                // Everything from the first downloaded day onward is covered by the new forecast.
+                // Published in its three parts, so that each one's count comes back.
+                for (String part : PUBLISH_PARTS) {
+                    operations.add(ContentProviderOperation.newUpdate(
+                            WeatherContract.WeatherStagingEntry.buildPublishUri(locationId, part))
+                            .withValue(WeatherContract.WeatherEntry.COLUMN_DATE, startDate)
+                            .build());
                 }
             }
+            stored.add(result);
+        }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        if (stored.isEmpty()) {
+            Log.d(LOG_TAG, "Sync Complete. Nothing to store");
+            return;
+        }
 
-                cVVector.add(weatherValues);
+        // Old days are left for WeatherRetentionTaskService, which purges them in small batches
+        // away from the sync.
+        int rowsWritten = 0;
+        if (!operations.isEmpty()) {
+            try {
+                ContentProviderResult[] published =
+                        resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+                for (int i = 0; i < published.length; i++) {
+                    int count = published[i].count;
+                    switch (i % PUBLISH_PARTS.length) {
+                        case 0:
+                            syncResult.stats.numDeletes += count;
+                            break;
+                        case 1:
+                            syncResult.stats.numUpdates += count;
+                            break;
+                        default:
+                            syncResult.stats.numInserts += count;
+                    }
+                    rowsWritten += count;
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                // Whatever was staged is replaced by the next sync
+                Log.e(LOG_TAG, "Error storing forecast", e);
+                syncResult.databaseError = true;
+                for (FetchResult result : stored) {
+                    result.status = LOCATION_STATUS_UNKNOWN;
+                }
+                return;
             }
+            metrics.record(null, WeatherContract.SyncMetricsEntry.PHASE_INSERT, start, 0,
+                    rowsWritten);
+        }
 
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        if (rowsWritten > 0) {
+            start = SyncMetrics.now();
+            updateWidgets();
+            metrics.record(null, WeatherContract.SyncMetricsEntry.PHASE_UPDATE_WIDGETS, start, 0, 0);
+            start = SyncMetrics.now();
+            updateMuzei();
+            metrics.record(null, WeatherContract.SyncMetricsEntry.PHASE_UPDATE_MUZEI, start, 0, 0);
+            start = SyncMetrics.now();
+            notifyWeather(metrics);
+            metrics.record(null, WeatherContract.SyncMetricsEntry.PHASE_NOTIFY_WEATHER, start, 0, 0);
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + stored.size() + " Locations, "
+                + syncResult.stats.numEntries + " Days, "
+                + syncResult.stats.numInserts + " Inserted, "
+                + syncResult.stats.numUpdates + " Updated, "
+                + syncResult.stats.numDeletes + " Deleted");
+
+        for (FetchResult result : stored) {
+            result.responseCache.commit(julianStartDay, result.bodyHash);
+        }
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * @return the location settings of every location the user has saved.
+     */
+    private List<String> getSavedLocations() {
+        List<String> savedLocations = new ArrayList<String>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry.COLUMN_SAVED + " = 1",
+                null,
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                savedLocations.add(cursor.getString(0));
+            }
+            cursor.close();
         }
+        return savedLocations;
     }
 
     private void updateWidgets() {
@@ -387,7 +672,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void notifyWeather() {
+    private void notifyWeather(SyncMetrics metrics) {
         Context context = getContext();
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -404,7 +689,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
                 String locationQuery = Utility.getPreferredLocation(context);
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+                Uri weatherUri = WeatherContract.CurrentSummaryEntry.buildCurrentUri(locationQuery);
 
                 // we'll query our contentProvider, as always
                 Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
@@ -418,7 +703,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
                     int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+                    String artUrl = Utility.getArtUrlForArtKey(context,
+                            cursor.getString(INDEX_ART_KEY));
 
                     // On Honeycomb and higher devices, we can retrieve the size of the large icon
                     // Prior to that, we use a fixed size
@@ -491,7 +777,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
 
+                    long start = SyncMetrics.now();
                     sendDataToWear(high, low , largeIcon);
+                    metrics.record(locationQuery, WeatherContract.SyncMetricsEntry.PHASE_SEND_TO_WEAR,
+                            start, 0, 0);
                 }
                 cursor.close();
             }
@@ -568,7 +857,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * Helper method to handle insertion of a new location in the weather database.  A location
+     * that is already there has its details brought up to date, e.g. one that was saved before
+     * it was ever synced and only has placeholders.  The provider knows the _id of every
+     * location it has seen, so this is one call without a query.
      *
      * @param locationSetting The location string used to request updates from the server.
      * @param cityName A human-readable city name, e.g "Mountain View"
@@ -577,44 +869,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+
+        Uri locationUri = getContext().getContentResolver().insert(
+                WeatherContract.LocationEntry.buildLocationUpsertUri(), locationValues);
+        return ContentUris.parseId(locationUri);
     }
 
     /**
@@ -648,6 +911,47 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Helper method to have the sync adapter sync every saved location immediately
+     * @param context The context used to access the account service
+     */
+    public static void syncAllLocationsImmediately(Context context) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(SYNC_EXTRAS_ALL_LOCATIONS, true);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
+    /**
+     * Adds a location to, or removes it from, the locations fetched by
+     * {@link #syncAllLocationsImmediately(Context)}.  A location that has never been synced is
+     * stored with placeholder details until its first forecast arrives.  This function should not
+     * be called from the UI thread because it writes to the database.
+     *
+     * @param context The context used to access the content provider
+     * @param locationSetting The location string used to request updates from the server.
+     * @param saved whether the location should be saved
+     */
+    public static void setLocationSaved(Context context, String locationSetting, boolean saved) {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_SAVED, saved ? 1 : 0);
+        int updated = context.getContentResolver().update(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                locationValues,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+        if (updated == 0 && saved) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 0);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, 0);
+            context.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI,
+                    locationValues);
+        }
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -719,5 +1023,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         SharedPreferences.Editor spe = sp.edit();
         spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
         spe.commit();
+        // Off the main thread, Utility's listener is only told later
+        Utility.refreshSettings(c);
     }
 }
\ No newline at end of file
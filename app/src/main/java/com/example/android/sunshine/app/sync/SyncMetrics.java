@@ -0,0 +1,132 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects how long each phase of one sync took, to be written to the sync_metrics table once
+ * the sync is over.  Phases may be recorded from any thread.
+ */
+class SyncMetrics {
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    private final long mSyncStart = System.currentTimeMillis();
+    private final List<ContentValues> mRecords = new ArrayList<ContentValues>();
+
+    /**
+     * @return the current time in nanoseconds, to pass to {@link #record} when a phase ends.
+     */
+    static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a phase that started at startNanos and ends now.
+     *
+     * @param locationSetting the location the phase was for, or null if it covers every location
+     * @param phase one of the SyncMetricsEntry.PHASE_ values
+     * @param startNanos the value of {@link #now()} when the phase started
+     * @param bytes bytes read from the network during the phase
+     * @param rows rows parsed or written during the phase
+     */
+    void record(String locationSetting, String phase, long startNanos, long bytes, long rows) {
+        recordDuration(locationSetting, phase, now() - startNanos, bytes, rows);
+    }
+
+    /**
+     * Records a phase whose duration was measured by the caller.
+     */
+    void recordDuration(String locationSetting, String phase, long durationNanos,
+                        long bytes, long rows) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_SYNC_START, mSyncStart);
+        values.put(SyncMetricsEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(SyncMetricsEntry.COLUMN_PHASE, phase);
+        values.put(SyncMetricsEntry.COLUMN_DURATION, durationNanos / 1000);
+        values.put(SyncMetricsEntry.COLUMN_BYTES, bytes);
+        values.put(SyncMetricsEntry.COLUMN_ROWS, rows);
+        synchronized (mRecords) {
+            mRecords.add(values);
+        }
+    }
+
+    /**
+     * Writes everything recorded so far in one bulk insert.  The provider keeps the table bounded.
+     */
+    void save(ContentResolver resolver) {
+        ContentValues[] records;
+        synchronized (mRecords) {
+            records = mRecords.toArray(new ContentValues[mRecords.size()]);
+            mRecords.clear();
+        }
+        if (records.length == 0) {
+            return;
+        }
+        try {
+            resolver.bulkInsert(SyncMetricsEntry.CONTENT_URI, records);
+        } catch (RuntimeException e) {
+            // Losing the metrics of one sync is not worth failing the sync over
+            Log.w(LOG_TAG, "Unable to store sync metrics", e);
+        }
+    }
+
+    /**
+     * Counts the bytes read through it and the time spent blocked reading them, so the time a
+     * streaming parser spends waiting on the network can be told apart from the time it spends
+     * parsing.
+     */
+    static class TimedInputStream extends FilterInputStream {
+        private long mBytes;
+        private long mReadNanos;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getBytes() {
+            return mBytes;
+        }
+
+        long getReadNanos() {
+            return mReadNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = now();
+            int b = super.read();
+            mReadNanos += now() - start;
+            if (b != -1) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = now();
+            int read = super.read(buffer, offset, count);
+            mReadNanos += now() - start;
+            if (read > 0) {
+                mBytes += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mBytes += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Keeps the weather table from growing without bound while keeping its history.
+ *
+ * Days are kept as they are for a number of days, and past that only survive in the weekly and
+ * monthly weather_stats rollups: deleting them through {@link WeatherEntry#buildWeatherCompactUri()}
+ * leaves those alone.  The cutoff is always a Monday, so a week is summarized from either all
+ * of its days or none of them.
+ *
+ * It runs once a day from WeatherRetentionTaskService.  Without Google Play services that task
+ * is never scheduled, so the sync runs it instead whenever it hasn't run for a day.
+ */
+class WeatherRetention {
+    private static final String LOG_TAG = WeatherRetention.class.getSimpleName();
+
+    // How often retention runs, by the task or by the sync
+    static final long RUN_INTERVAL_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    // Daily rows are kept this long before being collapsed into their weekly summaries
+    static final int DEFAULT_DAILY_DAYS = 90;
+    // Rows deleted per transaction, so the sync and the UI never wait long for the write lock
+    static final int DEFAULT_BATCH_SIZE = 200;
+
+    private final ContentResolver mResolver;
+    private final int mDailyDays;
+    private final int mBatchSize;
+    // _id IN (SELECT _id FROM weather WHERE date < ? LIMIT [batch size])
+    private final String mBatchSelection;
+
+    WeatherRetention(ContentResolver resolver, int dailyDays, int batchSize) {
+        mResolver = resolver;
+        mDailyDays = dailyDays;
+        mBatchSize = batchSize;
+        mBatchSelection = WeatherEntry._ID + " IN (SELECT " + WeatherEntry._ID + " FROM " +
+                WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_DATE + " < ? " +
+                "LIMIT " + batchSize + ")";
+    }
+
+    /**
+     * @return true if retention hasn't run for RUN_INTERVAL_MILLIS, or ever
+     */
+    static boolean isDue(Context context, long now) {
+        long lastRun = PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(context.getString(R.string.pref_last_retention), 0);
+        // A clock set back would otherwise put the next run off until it caught up
+        return now - lastRun >= RUN_INTERVAL_MILLIS || now < lastRun;
+    }
+
+    /**
+     * Purges the old days with the default tiers, maintains the database and records when it
+     * was done.
+     *
+     * @throws RuntimeException if the provider fails; the run isn't recorded then
+     */
+    static void run(Context context) {
+        WeatherRetention retention = new WeatherRetention(context.getContentResolver(),
+                DEFAULT_DAILY_DAYS, DEFAULT_BATCH_SIZE);
+        long now = System.currentTimeMillis();
+
+        long start = SyncMetrics.now();
+        int purged = retention.purge(now);
+        long purgeNanos = SyncMetrics.now() - start;
+        start = SyncMetrics.now();
+        long reclaimed = retention.maintainDatabase();
+        long maintainNanos = SyncMetrics.now() - start;
+        Log.d(LOG_TAG, String.format("Retention complete. %d rows purged in %.1f ms, "
+                        + "%d bytes reclaimed in %.1f ms",
+                purged, purgeNanos / 1e6, reclaimed, maintainNanos / 1e6));
+
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(context.getString(R.string.pref_last_retention), now)
+                .commit();
+    }
+
+    /**
+     * @return the normalized date of the first day that is kept as it is: the Monday on or
+     * before the day dailyDays before now.
+     */
+    static long getCutoffDate(long now, int dailyDays) {
+        Time time = new Time();
+        time.set(now);
+        int julianDay = Time.getJulianDay(now, time.gmtoff) - dailyDays;
+        // Julian day 0 was a Monday
+        return time.setJulianDay(julianDay - julianDay % 7);
+    }
+
+    /**
+     * Deletes the days before the cutoff, one small transaction at a time.
+     *
+     * @return the number of rows deleted
+     */
+    int purge(long now) {
+        String[] selectionArgs = {Long.toString(getCutoffDate(now, mDailyDays))};
+        Uri compactUri = WeatherEntry.buildWeatherCompactUri();
+        int purged = 0;
+        int deleted;
+        do {
+            deleted = mResolver.delete(compactUri, mBatchSelection, selectionArgs);
+            purged += deleted;
+        } while (deleted == mBatchSize);
+        return purged;
+    }
+
+    /**
+     * Runs ANALYZE and vacuum on the database, see WeatherDbHelper.
+     *
+     * @return the bytes reclaimed, 0 if the platform is too old to ask the provider
+     */
+    long maintainDatabase() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // ContentResolver.call() isn't there
+            return 0;
+        }
+        return callMaintainDatabase();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private long callMaintainDatabase() {
+        Bundle result = mResolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_MAINTAIN_DATABASE, null, null);
+        return result != null ? result.getLong(WeatherContract.EXTRA_BYTES_RECLAIMED) : 0;
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.gcm.GcmNetworkManager;
+import com.google.android.gms.gcm.GcmTaskService;
+import com.google.android.gms.gcm.PeriodicTask;
+import com.google.android.gms.gcm.Task;
+import com.google.android.gms.gcm.TaskParams;
+
+/**
+ * Purges old weather and tidies up the database once a day, while the device is charging,
+ * rather than in the middle of a sync.  See WeatherRetention for what is kept.
+ */
+public class WeatherRetentionTaskService extends GcmTaskService {
+    private static final String LOG_TAG = WeatherRetentionTaskService.class.getSimpleName();
+
+    private static final String TASK_TAG = "weather_retention";
+    private static final long PERIOD_SECONDS = WeatherRetention.RUN_INTERVAL_MILLIS / 1000;
+    private static final long FLEX_SECONDS = PERIOD_SECONDS / 4;
+
+    /**
+     * Schedules the daily run, replacing any earlier schedule.  Needs Google Play services.
+     */
+    public static void schedule(Context context) {
+        PeriodicTask task = new PeriodicTask.Builder()
+                .setService(WeatherRetentionTaskService.class)
+                .setTag(TASK_TAG)
+                .setPeriod(PERIOD_SECONDS)
+                .setFlex(FLEX_SECONDS)
+                .setRequiredNetwork(Task.NETWORK_STATE_ANY)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .setUpdateCurrent(true)
+                .build();
+        GcmNetworkManager.getInstance(context).schedule(task);
+    }
+
+    /*
+        Scheduled tasks are dropped when the app or Google Play services is updated.
+     */
+    @Override
+    public void onInitializeTasks() {
+        super.onInitializeTasks();
+        schedule(this);
+    }
+
+    @Override
+    public int onRunTask(TaskParams params) {
+        try {
+            WeatherRetention.run(this);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error applying weather retention", e);
+            return GcmNetworkManager.RESULT_RESCHEDULE;
+        }
+        return GcmNetworkManager.RESULT_SUCCESS;
+    }
+}
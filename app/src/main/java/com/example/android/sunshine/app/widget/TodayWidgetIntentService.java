@@ -39,10 +39,10 @@ import com.example.android.sunshine.app.data.WeatherContract;
  */
 public class TodayWidgetIntentService extends IntentService {
     private static final String[] FORECAST_COLUMNS = {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+            WeatherContract.CurrentSummaryEntry.COLUMN_WEATHER_ID,
+            WeatherContract.CurrentSummaryEntry.COLUMN_SHORT_DESC,
+            WeatherContract.CurrentSummaryEntry.COLUMN_MAX_TEMP,
+            WeatherContract.CurrentSummaryEntry.COLUMN_MIN_TEMP
     };
     // these indices must match the projection
     private static final int INDEX_WEATHER_ID = 0;
@@ -63,10 +63,8 @@ public class TodayWidgetIntentService extends IntentService {
 
         // Get today's data from the ContentProvider
         String location = Utility.getPreferredLocation(this);
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
-        Cursor data = getContentResolver().query(weatherForLocationUri, FORECAST_COLUMNS, null,
-                null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        Uri currentUri = WeatherContract.CurrentSummaryEntry.buildCurrentUri(location);
+        Cursor data = getContentResolver().query(currentUri, FORECAST_COLUMNS, null, null, null);
         if (data == null) {
             return;
         }